@@ -0,0 +1,54 @@
+package pt.isel.pc;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+
+/**
+ * Runs the fast path benchmarks with the GC profiler and fails if any of them allocates
+ * - the check uses gc.alloc.rate.norm (bytes per operation), which is never exactly 0
+ *   because of the profiler itself, so anything below MAX_BYTES_PER_OP counts as 0
+ * - uncontended distribution only, since waiting on the slow path allocates a request
+ * Usage: AllocationCheck [include regexp]
+ */
+public class AllocationCheck {
+
+    private static final double MAX_BYTES_PER_OP = 0.01;
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0
+                ? args[0]
+                : ThrottledRegionBenchmark.class.getName() + ".throttledRegion3$";
+
+        Options opts = new OptionsBuilder()
+                .include(include)
+                .param("distribution", "uncontended")
+                .threads(1)
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        boolean failed = false;
+        for(RunResult res : new Runner(opts).run()){
+            for(Map.Entry<String, Result> e : res.getAggregatedResult().getSecondaryResults().entrySet()){
+                // the label has a prefix that changed between JMH versions
+                if(!e.getKey().endsWith("gc.alloc.rate.norm")){
+                    continue;
+                }
+                double bytes = e.getValue().getScore();
+                boolean ok = bytes < MAX_BYTES_PER_OP;
+                System.out.printf("%s %s (maxInside=%s): %.4f B/op%n",
+                        ok ? "OK  " : "FAIL", res.getParams().getBenchmark(), res.getParams().getParam("maxInside"), bytes);
+                failed |= !ok;
+            }
+        }
+        if(failed){
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package pt.isel.pc;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmarks for 1, 2, 4, ... up to N threads, measuring
+ * - throughput, in ops/s
+ * - latency distribution (p99, p99.9), in ns/op
+ * Usage: BenchmarkRunner [maxThreads] [include regexp]
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        int maxThreads = args.length > 0
+                ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        String include = args.length > 1 ? args[1] : "pt.isel.pc.*";
+
+        for(int threads = 1; ; threads *= 2){
+            if(threads > maxThreads){
+                threads = maxThreads;
+            }
+            run(include, threads, Mode.Throughput, TimeUnit.SECONDS);
+            run(include, threads, Mode.SampleTime, TimeUnit.NANOSECONDS);
+            if(threads == maxThreads){
+                return;
+            }
+        }
+    }
+
+    private static void run(String include, int threads, Mode mode, TimeUnit unit) throws RunnerException {
+        Options opts = new OptionsBuilder()
+                .include(include)
+                .exclude(BenchmarkRunner.class.getName())
+                .threads(threads)
+                .mode(mode)
+                .timeUnit(unit)
+                .result(String.format("jmh-%s-%d.csv", mode, threads))
+                .build();
+        new Runner(opts).run();
+    }
+}
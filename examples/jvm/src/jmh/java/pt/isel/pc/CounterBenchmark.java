@@ -0,0 +1,89 @@
+package pt.isel.pc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the CounterExample counters, Counter6 being the striped one.
+ * - contended: all threads increment the same counter
+ * - uncontended: each thread increments its own counter
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterBenchmark {
+
+    private static final int MAX_THREADS = 256;
+
+    @State(Scope.Benchmark)
+    public static class Counters {
+
+        @Param({"contended", "uncontended"})
+        public String distribution;
+
+        public final CounterExample.Counter1[] c1 = new CounterExample.Counter1[MAX_THREADS];
+        public final CounterExample.Counter2[] c2 = new CounterExample.Counter2[MAX_THREADS];
+        public final CounterExample.Counter3[] c3 = new CounterExample.Counter3[MAX_THREADS];
+        public final CounterExample.Counter4[] c4 = new CounterExample.Counter4[MAX_THREADS];
+        public final CounterExample.Counter5[] c5 = new CounterExample.Counter5[MAX_THREADS];
+        public final CounterExample.Counter6[] c6 = new CounterExample.Counter6[MAX_THREADS];
+
+        @Setup
+        public void setup(){
+            for(int i = 0 ; i<MAX_THREADS ; ++i){
+                c1[i] = new CounterExample.Counter1();
+                c2[i] = new CounterExample.Counter2();
+                c3[i] = new CounterExample.Counter3();
+                c4[i] = new CounterExample.Counter4();
+                c5[i] = new CounterExample.Counter5();
+                c6[i] = new CounterExample.Counter6();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Slot {
+        public int ix;
+
+        @Setup
+        public void setup(Counters counters, ThreadParams params){
+            ix = counters.distribution.equals("contended")
+                    ? 0
+                    : params.getThreadIndex() % MAX_THREADS;
+        }
+    }
+
+    @Benchmark
+    public void counter1(Counters counters, Slot slot){
+        counters.c1[slot.ix].inc();
+    }
+
+    @Benchmark
+    public void counter2(Counters counters, Slot slot){
+        counters.c2[slot.ix].inc();
+    }
+
+    @Benchmark
+    public void counter3(Counters counters, Slot slot){
+        counters.c3[slot.ix].inc();
+    }
+
+    @Benchmark
+    public void counter4(Counters counters, Slot slot){
+        counters.c4[slot.ix].inc();
+    }
+
+    @Benchmark
+    public void counter5(Counters counters, Slot slot){
+        counters.c5[slot.ix].inc();
+    }
+
+    @Benchmark
+    public void counter6(Counters counters, Slot slot){
+        counters.c6[slot.ix].inc();
+    }
+}
@@ -0,0 +1,83 @@
+package pt.isel.pc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent enqueue and dequeue on a shared LockFreeQueue,
+ * with ConcurrentLinkedQueue as the baseline and LockFreeRingBuffer as the bounded alternative.
+ * The queues are recreated on each iteration, and the single threaded benchmark dequeues what it enqueues,
+ * so their size stays bounded.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LockFreeQueueBenchmark {
+
+    private static final Integer VALUE = 42;
+
+    private LockFreeQueue<Integer> queue;
+    private ConcurrentLinkedQueue<Integer> baseline;
+    private LockFreeRingBuffer<Integer> ringBuffer;
+
+    @Setup(Level.Iteration)
+    public void setup(){
+        queue = new LockFreeQueue<>();
+        baseline = new ConcurrentLinkedQueue<>();
+        ringBuffer = LockFreeRingBuffer.mpmc(1024);
+    }
+
+    @Benchmark
+    public Integer enqueueDequeue(){
+        // an enqueue only benchmark grows the queue for the whole iteration, measuring the GC instead
+        queue.enqueue(VALUE);
+        return queue.dequeue();
+    }
+
+    @Benchmark
+    @Group("lockFreeQueue")
+    @GroupThreads(1)
+    public void producer(){
+        queue.enqueue(VALUE);
+    }
+
+    @Benchmark
+    @Group("lockFreeQueue")
+    @GroupThreads(1)
+    public Integer consumer(){
+        return queue.dequeue();
+    }
+
+    @Benchmark
+    @Group("concurrentLinkedQueue")
+    @GroupThreads(1)
+    public void baselineProducer(){
+        baseline.offer(VALUE);
+    }
+
+    @Benchmark
+    @Group("concurrentLinkedQueue")
+    @GroupThreads(1)
+    public Integer baselineConsumer(){
+        return baseline.poll();
+    }
+
+    @Benchmark
+    @Group("ringBuffer")
+    @GroupThreads(1)
+    public boolean ringBufferProducer(){
+        return ringBuffer.offer(VALUE);
+    }
+
+    @Benchmark
+    @Group("ringBuffer")
+    @GroupThreads(1)
+    public Integer ringBufferConsumer(){
+        return ringBuffer.poll();
+    }
+}
@@ -0,0 +1,60 @@
+package pt.isel.pc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent push and pop on a shared LockFreeStack.
+ * - pushPop: one pusher and one popper, so the stack stays small
+ * - contended: eight pushers and eight poppers hammering tos
+ * eliminationWidth = 0 is the plain Treiber stack.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LockFreeStackBenchmark {
+
+    private static final Integer VALUE = 42;
+
+    @Param({"0", "8"})
+    public int eliminationWidth;
+
+    private LockFreeStack<Integer> stack;
+
+    @Setup(Level.Iteration)
+    public void setup(){
+        stack = new LockFreeStack<>(eliminationWidth);
+    }
+
+    @Benchmark
+    @Group("pushPop")
+    @GroupThreads(1)
+    public void push(){
+        stack.push(VALUE);
+    }
+
+    @Benchmark
+    @Group("pushPop")
+    @GroupThreads(1)
+    public Integer pop(){
+        return stack.pop();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(8)
+    public void contendedPush(){
+        stack.push(VALUE);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(8)
+    public Integer contendedPop(){
+        return stack.pop();
+    }
+}
@@ -0,0 +1,42 @@
+package pt.isel.pc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent push and pop on a shared PooledLockFreeStack,
+ * to compare with LockFreeStackBenchmark (run with -prof gc to see the allocation rate).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PooledLockFreeStackBenchmark {
+
+    private static final Integer VALUE = 42;
+    private static final int CAPACITY = 1 << 16;
+
+    private PooledLockFreeStack<Integer> stack;
+
+    @Setup(Level.Iteration)
+    public void setup(){
+        stack = new PooledLockFreeStack<>(CAPACITY);
+    }
+
+    @Benchmark
+    @Group("pushPop")
+    @GroupThreads(1)
+    public boolean push(){
+        return stack.push(VALUE);
+    }
+
+    @Benchmark
+    @Group("pushPop")
+    @GroupThreads(1)
+    public Integer pop(){
+        return stack.pop();
+    }
+}
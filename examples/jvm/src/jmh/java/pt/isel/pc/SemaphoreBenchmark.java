@@ -0,0 +1,79 @@
+package pt.isel.pc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acquire/release round trips on the semaphore implementations.
+ * - permits = 1: threads contend for a single unit and must wait
+ *   (semaphoreWithFifoPolicy relies on an acquire of the last available unit not waiting, otherwise it never ends)
+ * - permits = 1024: there is always an available unit
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SemaphoreBenchmark {
+
+    private static final long LOTS_OF_TIME = 1L << 62;
+
+    @Param({"1", "1024"})
+    public int permits;
+
+    private LockFreeSemaphore lockFree;
+    private LockFreeSemaphore sharded;
+    private AsyncSemaphore async;
+    private SemaphoreWithFifoPolicy fifo;
+    private SemaphoreUsingLocksAndConditions locksAndConditions;
+
+    @Setup
+    public void setup(){
+        lockFree = new LockFreeSemaphore(permits);
+        sharded = new LockFreeSemaphore(permits, Runtime.getRuntime().availableProcessors());
+        async = new AsyncSemaphore(permits);
+        fifo = new SemaphoreWithFifoPolicy(permits);
+        locksAndConditions = new SemaphoreUsingLocksAndConditions(permits);
+    }
+
+    @Benchmark
+    public void lockFreeSemaphore() throws InterruptedException {
+        lockFree.acquire();
+        lockFree.release();
+    }
+
+    @Benchmark
+    public void shardedLockFreeSemaphore() throws InterruptedException {
+        sharded.acquire();
+        sharded.release();
+    }
+
+    @Benchmark
+    public boolean asyncSemaphore(){
+        if(async.acquireAsync(1, LOTS_OF_TIME, TimeUnit.NANOSECONDS).join()){
+            async.release(1);
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean semaphoreWithFifoPolicy() throws InterruptedException {
+        if(fifo.acquire(1, LOTS_OF_TIME)){
+            fifo.release(1);
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean semaphoreUsingLocksAndConditions() throws InterruptedException {
+        if(locksAndConditions.acquire(1, LOTS_OF_TIME)){
+            locksAndConditions.release(1);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+package pt.isel.pc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enter, hold for a while and leave a single permit LockFreeSemaphore and a maxInside 1 ThrottledRegion3,
+ * with and without spinning.
+ * - short hold (sub-microsecond): spinning should hand the permit over without a park/unpark round trip
+ * - long hold (tens of microseconds): the window should shrink to the minimum, so spinning should
+ *   not cost more than blocking. Run with -prof perfnorm (or compare the process CPU time)
+ *   to check the CPU spent per operation
+ * Use Mode.SampleTime (e.g. through BenchmarkRunner) for the handoff latency distribution.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SpinPolicyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Synchronizers {
+
+        @Param({"adaptive", "disabled"})
+        public String spin;
+
+        // Blackhole.consumeCPU tokens inside the critical section
+        @Param({"10", "20000"})
+        public long holdTokens;
+
+        public LockFreeSemaphore semaphore;
+        public ThrottledRegion3 region;
+
+        @Setup
+        public void setup(){
+            SpinPolicy policy = spin.equals("adaptive") ? new SpinPolicy() : SpinPolicy.DISABLED;
+            semaphore = new LockFreeSemaphore(1, 1, null, policy);
+            region = new ThrottledRegion3(1, 1 << 20, Integer.MAX_VALUE, 0, 0, TimeUnit.NANOSECONDS, null, policy);
+        }
+    }
+
+    @Benchmark
+    public void lockFreeSemaphore(Synchronizers s) throws InterruptedException {
+        s.semaphore.acquire();
+        try{
+            Blackhole.consumeCPU(s.holdTokens);
+        }finally{
+            s.semaphore.release();
+        }
+    }
+
+    @Benchmark
+    public boolean throttledRegion3(Synchronizers s) throws InterruptedException {
+        if(!s.region.TryEnter(0)){
+            return false;
+        }
+        try{
+            Blackhole.consumeCPU(s.holdTokens);
+        }finally{
+            s.region.Leave(0);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,156 @@
+package pt.isel.pc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for TcpEchoServer, over loopback, with the server on the same process
+ * - each client thread repeatedly connects, does ECHOES round trips of MESSAGE_SIZE bytes and disconnects,
+ *   so both the admission and the echo path are measured
+ * - reports the connections/s that got to be served, the rejected ones (closed by the server before the first echo)
+ *   and the echo round trip latency distribution
+ * - with more clients than maxInside the connections wait on the ThrottledRegion3,
+ *   with more than maxInside + maxWaiting some are rejected
+ * Usage: TcpEchoLoadGenerator [selector|threads] [clients] [seconds] [maxInside] [maxWaiting] [timeoutMs]
+ * (timeoutMs at most 2147, since the region timeout is an int of nanos)
+ */
+public class TcpEchoLoadGenerator {
+
+    private static final int ECHOES = 16;
+    private static final int MESSAGE_SIZE = 64;
+
+    private static class Client extends Thread {
+        private final InetSocketAddress address;
+        private final long deadline;
+        private final AtomicLong served;
+        private final AtomicLong rejected;
+        // round trip times, in nanos
+        long[] latencies = new long[1 << 16];
+        int count;
+        Throwable failure;
+
+        Client(InetSocketAddress address, long deadline, AtomicLong served, AtomicLong rejected){
+            this.address = address;
+            this.deadline = deadline;
+            this.served = served;
+            this.rejected = rejected;
+        }
+
+        @Override
+        public void run(){
+            ByteBuffer out = ByteBuffer.allocate(MESSAGE_SIZE);
+            ByteBuffer in = ByteBuffer.allocate(MESSAGE_SIZE);
+            try{
+                while(System.nanoTime() < deadline){
+                    try(SocketChannel ch = SocketChannel.open(address)){
+                        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        if(session(ch, out, in)){
+                            served.incrementAndGet();
+                        }else{
+                            rejected.incrementAndGet();
+                        }
+                    }catch(IOException e){
+                        // reset by the server, when rejected while the request was being written
+                        rejected.incrementAndGet();
+                    }
+                }
+            }catch(Throwable e){
+                failure = e;
+            }
+        }
+
+        // false if closed by the server before the first echo
+        private boolean session(SocketChannel ch, ByteBuffer out, ByteBuffer in) throws IOException {
+            for(int i = 0 ; i<ECHOES ; ++i){
+                long start = System.nanoTime();
+                out.clear();
+                while(out.hasRemaining()){
+                    ch.write(out);
+                }
+                in.clear();
+                while(in.hasRemaining()){
+                    if(ch.read(in) < 0){
+                        if(i == 0){
+                            return false;
+                        }
+                        throw new IOException("closed while being served");
+                    }
+                }
+                record(System.nanoTime() - start);
+            }
+            return true;
+        }
+
+        private void record(long nanos){
+            if(count == latencies.length){
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TcpEchoServer.Mode mode = args.length > 0 && args[0].equals("threads")
+                ? TcpEchoServer.Mode.THREAD_PER_CONNECTION : TcpEchoServer.Mode.SELECTOR;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int maxInside = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        int maxWaiting = args.length > 4 ? Integer.parseInt(args[4]) : 32;
+        int timeoutMs = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+
+        SynchronizerMetrics metrics = new SynchronizerMetrics();
+        ThrottledRegion3 admission = new ThrottledRegion3(maxInside, maxWaiting,
+                TcpEchoServer.regionTimeout(timeoutMs), 0, 0, TimeUnit.NANOSECONDS, metrics);
+        try(TcpEchoServer server = new TcpEchoServer(new InetSocketAddress("127.0.0.1", 0), admission, mode)){
+            server.start();
+            InetSocketAddress address = server.localAddress();
+            AtomicLong served = new AtomicLong();
+            AtomicLong rejected = new AtomicLong();
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            Client[] cs = new Client[clients];
+            for(int i = 0 ; i<clients ; ++i){
+                cs[i] = new Client(address, deadline, served, rejected);
+                cs[i].start();
+            }
+            int total = 0;
+            for(Client c : cs){
+                c.join();
+                if(c.failure != null){
+                    throw new IllegalStateException(c.failure);
+                }
+                total += c.count;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long[] all = new long[total];
+            int pos = 0;
+            for(Client c : cs){
+                System.arraycopy(c.latencies, 0, all, pos, c.count);
+                pos += c.count;
+            }
+            Arrays.sort(all);
+
+            System.out.printf("%s, %d clients, maxInside=%d maxWaiting=%d timeout=%dms%n",
+                    mode, clients, maxInside, maxWaiting, timeoutMs);
+            System.out.printf("connections: %.0f/s served, %.0f/s rejected%n", served.get() / elapsed, rejected.get() / elapsed);
+            System.out.printf("echoes: %.0f/s, p50=%dus p99=%dus p99.9=%dus max=%dus%n",
+                    total / elapsed, percentile(all, 50), percentile(all, 99), percentile(all, 99.9), percentile(all, 100));
+            System.out.printf("admission: %s%n", metrics.snapshot());
+        }
+    }
+
+    // in micros
+    private static long percentile(long[] sorted, double p){
+        if(sorted.length == 0){
+            return 0;
+        }
+        int ix = (int) Math.ceil(sorted.length * p / 100) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, ix)]);
+    }
+}
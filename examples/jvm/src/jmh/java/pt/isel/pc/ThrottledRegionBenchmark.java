@@ -0,0 +1,71 @@
+package pt.isel.pc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TryEnter/Leave round trips on ThrottledRegion2 and ThrottledRegion3.
+ * - contended: all threads use the same key
+ * - uncontended: each thread uses its own key
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThrottledRegionBenchmark {
+
+    private static final int WAIT_TIMEOUT = 1000000000;
+    private static final int MAX_WAITING = 1 << 20;
+
+    @State(Scope.Benchmark)
+    public static class Regions {
+
+        @Param({"1", "4"})
+        public int maxInside;
+
+        @Param({"contended", "uncontended"})
+        public String distribution;
+
+        public ThrottledRegion2 region2;
+        public ThrottledRegion3 region3;
+
+        @Setup
+        public void setup(){
+            region2 = new ThrottledRegion2(maxInside, MAX_WAITING, WAIT_TIMEOUT);
+            region3 = new ThrottledRegion3(maxInside, MAX_WAITING, WAIT_TIMEOUT);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Key {
+        public int key;
+
+        @Setup
+        public void setup(Regions regions, ThreadParams params){
+            key = regions.distribution.equals("contended")
+                    ? 0
+                    : params.getThreadIndex();
+        }
+    }
+
+    @Benchmark
+    public boolean throttledRegion2(Regions regions, Key key) throws InterruptedException {
+        if(regions.region2.TryEnter(key.key)){
+            regions.region2.Leave(key.key);
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean throttledRegion3(Regions regions, Key key) throws InterruptedException {
+        if(regions.region3.TryEnter(key.key)){
+            regions.region3.Leave(key.key);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,268 @@
+package pt.isel.pc;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Semaphore where waiting is represented by a future instead of a blocked thread
+ * (same design as dotnet/SemaphoreAsync/TapSemaphore.cs)
+ * - FIFO acquire policy
+ * - lock-free fast path while no one is waiting, using a waiting flag packed with the permits (as in ThrottledRegion3)
+ * - futures are completed outside the lock
+ * - cancelling a returned future gives up the acquire
+ * - each call returns its own future, even when already completed, so a caller's obtrude can't affect the others
+ * - the timeouts run on a ScheduledExecutorService or, for many short lived waiters, on a TimerWheel
+ */
+public class AsyncSemaphore {
+
+    // shared by all the instances that don't provide their own scheduler
+    private static final ScheduledExecutorService defaultScheduler = createDefaultScheduler();
+
+    private static ScheduledExecutorService createDefaultScheduler(){
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread th = Executors.defaultThreadFactory().newThread(r);
+            th.setDaemon(true);
+            return th;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    private class Waiter extends DListNode {
+        public final int units;
+        public final WaiterFuture future = new WaiterFuture(this);
+        // changed and observed inside the lock
+        public boolean done;
+        // only one of them is used, depending on the constructor
+        public ScheduledFuture<?> timeout;
+        public TimerWheel.Timeout wheelTimeout;
+        // links the waiters granted by the same release, to complete them outside the lock
+        public Waiter nextGranted;
+
+        public Waiter(int units){
+            this.units = units;
+        }
+
+        public void cancelTimeout(){
+            if(timeout != null){
+                timeout.cancel(false);
+            }else if(wheelTimeout != null){
+                wheelTimeout.cancel();
+            }
+        }
+    }
+
+    private class WaiterFuture extends CompletableFuture<Boolean> {
+        private final Waiter waiter;
+
+        public WaiterFuture(Waiter waiter){
+            this.waiter = waiter;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning){
+            return giveUp(waiter) && super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    // permits on bits 0 to 30, waiting flag on bit 31
+    // the flag is observed outside the lock however it is only changed inside the lock
+    private final AtomicInteger state;
+    private static final int MASK = 1 << 31;
+
+    private final Lock lock = new ReentrantLock();
+    // changed and observed inside the lock
+    private final DListNode queue = DListNode.newList();
+
+    // only one of them is used
+    private final ScheduledExecutorService scheduler;
+    private final TimerWheel timer;
+
+    public AsyncSemaphore(int initial){
+        this(initial, defaultScheduler);
+    }
+
+    public AsyncSemaphore(int initial, ScheduledExecutorService scheduler){
+        state = new AtomicInteger(initial);
+        this.scheduler = scheduler;
+        this.timer = null;
+    }
+
+    public AsyncSemaphore(int initial, TimerWheel timer){
+        state = new AtomicInteger(initial);
+        this.scheduler = null;
+        this.timer = timer;
+    }
+
+    private static boolean waiting(int observed){
+        return observed < 0;
+    }
+
+    private static int permits(int observed){
+        return observed & ~MASK;
+    }
+
+    /**
+     * Never waits, returns false if someone is already waiting or the units are not available.
+     */
+    public boolean tryAcquire(int units){
+        do{
+            int observed = state.get();
+            if(waiting(observed) || permits(observed) < units){
+                return false;
+            }
+            if(state.compareAndSet(observed, observed - units)){
+                return true;
+            }
+        }while(true);
+    }
+
+    /**
+     * The returned future completes with true when the units are acquired
+     * or with false if the timeout expires first.
+     */
+    public CompletableFuture<Boolean> acquireAsync(int units, long timeout, TimeUnit unit){
+        // let's be optimistic
+        if(tryAcquire(units)){
+            return CompletableFuture.completedFuture(true);
+        }
+        if(timeout <= 0){
+            return CompletableFuture.completedFuture(false);
+        }
+
+        // slow path
+        Waiter w = new Waiter(units);
+        RejectedExecutionException rejected = null;
+        Waiter granted = null;
+        lock.lock();
+        try{
+            do{
+                // because the permits could be released in the meanwhile
+                int observed = state.get();
+                if(!waiting(observed) && permits(observed) >= units){
+                    if(state.compareAndSet(observed, observed - units)){
+                        return CompletableFuture.completedFuture(true);
+                    }
+                    continue;
+                }
+                // from now on all the releases go through the lock
+                if(state.compareAndSet(observed, observed | MASK)){
+                    break;
+                }
+            }while(true);
+            DListNode.addLast(queue, w);
+            // the timeout only starts after the waiter is in the queue
+            try{
+                Runnable onTimeout = () -> {
+                    if(giveUp(w)){
+                        w.future.complete(false);
+                    }
+                };
+                if(timer != null){
+                    w.wheelTimeout = timer.schedule(onTimeout, timeout, unit);
+                }else{
+                    w.timeout = scheduler.schedule(onTimeout, timeout, unit);
+                }
+            }catch(RejectedExecutionException e){
+                // the scheduler is shut down, so don't leave a waiter that would never time out
+                w.done = true;
+                DListNode.remove(w);
+                rejected = e;
+                granted = grant();
+            }
+        }finally{
+            lock.unlock();
+        }
+        if(rejected != null){
+            complete(granted);
+            throw rejected;
+        }
+        return w.future;
+    }
+
+    public void release(int units){
+        do{
+            int observed = state.get();
+            if(waiting(observed)){
+                break;
+            }
+            if(state.compareAndSet(observed, observed + units)){
+                return;
+            }
+        }while(true);
+
+        // slow path, someone may be waiting
+        Waiter granted;
+        lock.lock();
+        try{
+            // the flag may have been cleared in the meanwhile, so the update must be atomic
+            int observed = state.addAndGet(units);
+            granted = waiting(observed) ? grant() : null;
+        }finally{
+            lock.unlock();
+        }
+        complete(granted);
+    }
+
+    // must be called inside the lock, with the waiting flag set
+    // while the flag is set all the updates are done inside the lock
+    private Waiter grant(){
+        int available = permits(state.get());
+        Waiter first = null;
+        Waiter last = null;
+        Waiter w;
+        while((w = DListNode.firstEntry(queue)) != null && w.units <= available){
+            DListNode.remove(w);
+            w.done = true;
+            available -= w.units;
+            if(last == null){
+                first = w;
+            }else{
+                last.nextGranted = w;
+            }
+            last = w;
+        }
+        // no one is waiting, clear the flag
+        state.set(DListNode.isListEmpty(queue) ? available : available | MASK);
+        return first;
+    }
+
+    // must be called outside the lock
+    private void complete(Waiter granted){
+        while(granted != null){
+            Waiter next = granted.nextGranted;
+            granted.nextGranted = null;
+            granted.cancelTimeout();
+            granted.future.complete(true);
+            granted = next;
+        }
+    }
+
+    // on timeout or cancellation, returns false if the waiter was already granted
+    private boolean giveUp(Waiter w){
+        Waiter granted;
+        lock.lock();
+        try{
+            if(w.done){
+                return false;
+            }
+            w.done = true;
+            DListNode.remove(w);
+            // the removed waiter may have been blocking the ones behind it
+            granted = grant();
+        }finally{
+            lock.unlock();
+        }
+        complete(granted);
+        w.cancelTimeout();
+        return true;
+    }
+}
@@ -1,6 +1,6 @@
 package pt.isel.pc;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by pedro on 14/11/16.
@@ -29,16 +29,16 @@ public class CounterExample {
     }
 
     static class Counter4 {
-        private AtomicInteger counter;
+        private AtomicLong counter;
 
         public Counter4() {
-            counter = new AtomicInteger();
+            counter = new AtomicLong();
         }
 
         public void inc() {
             while(true) {
-                int oldValue = counter.get();
-                int newValue = oldValue+1;
+                long oldValue = counter.get();
+                long newValue = oldValue+1;
                 // ...
                 if (counter.compareAndSet(oldValue, newValue)) {
                     return;
@@ -49,7 +49,7 @@ public class CounterExample {
     }
 
     static class Counter5 {
-        private AtomicInteger counter = new AtomicInteger();
+        private AtomicLong counter = new AtomicLong();
 
         public void inc() {
             counter.incrementAndGet();
@@ -57,6 +57,16 @@ public class CounterExample {
         public long get() { return counter.get(); }
     }
 
+    static class Counter6 {
+        // no single contended word
+        private final StripedCounter counter = new StripedCounter();
+
+        public void inc() {
+            counter.increment();
+        }
+        public long get() { return counter.sum(); }
+    }
+
 
     static class IncrThread extends Thread{
         public void run(){
@@ -0,0 +1,78 @@
+package pt.isel.pc;
+
+/**
+ * Intrusive doubly-linked list, ported from dotnet/SemaphoreAsync/DListNode.cs
+ * - the list is a sentinel node, the elements are objects of classes derived from DListNode
+ * - adding and removing an element never allocates and removal is O(1)
+ * - not thread-safe, lists are meant to be used inside a lock
+ */
+public class DListNode {
+    // forward and back links, null when not in a list
+    DListNode next, prev;
+
+    // Creates an empty list.
+    public static DListNode newList() {
+        DListNode list = new DListNode();
+        list.next = list.prev = list;
+        return list;
+    }
+
+    // Returns the first entry of the list or null if the list is empty.
+    @SuppressWarnings("unchecked")
+    public static <T extends DListNode> T firstEntry(DListNode list) {
+        return list.next == list ? null : (T) list.next;
+    }
+
+    // Returns true if the specified list is empty.
+    public static boolean isListEmpty(DListNode list) {
+        return list.next == list;
+    }
+
+    // Returns true if the specified entry is in a list.
+    public static boolean isInList(DListNode entry) {
+        return entry.next != null;
+    }
+
+    // Removes the specified entry from the list that contains it.
+    public static void remove(DListNode entry) {
+        DListNode next = entry.next, prev = entry.prev;
+        next.prev = prev;
+        prev.next = next;
+        entry.next = entry.prev = null;     // mark as removed!
+    }
+
+    // Removes the specified entry if it is inserted in a list.
+    public static boolean removeIfInserted(DListNode entry) {
+        if (entry.next == null) {
+            return false;
+        }
+        remove(entry);
+        return true;
+    }
+
+    // Removes the entry that is at the front of the list.
+    @SuppressWarnings("unchecked")
+    public static <T extends DListNode> T removeFirst(DListNode list) {
+        DListNode entry = list.next;
+        remove(entry);
+        return (T) entry;
+    }
+
+    // Inserts the specified entry at the tail of the list.
+    public static void addLast(DListNode list, DListNode entry) {
+        DListNode prev = list.prev;
+        entry.next = list;
+        entry.prev = prev;
+        prev.next = entry;
+        list.prev = entry;
+    }
+
+    // Inserts the specified entry at the head of the list.
+    public static void addFirst(DListNode list, DListNode entry) {
+        DListNode next = list.next;
+        entry.next = next;
+        entry.prev = list;
+        next.prev = entry;
+        list.next = entry;
+    }
+}
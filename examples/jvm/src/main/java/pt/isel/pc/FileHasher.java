@@ -0,0 +1,319 @@
+package pt.isel.pc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hashes files by memory mapping them, with the I/O overlapped with the digest
+ * (the dotnet/Async/FileHash examples, without the read-then-transform loop)
+ * - each file is a pipeline: a producer maps the file in chunks and loads them (this is where the I/O happens),
+ *   a consumer digests them, connected by a single producer/single consumer LockFreeRingBuffer
+ * - the chunks mapped and not yet digested are limited, across all the files, by a LockFreeSemaphore,
+ *   so many files in parallel don't fault in more than maxInFlight chunks ahead of the digest
+ * - a digested chunk is only unmapped when its MappedByteBuffer is collected, since Java has no public unmap,
+ *   so on multi GB files the mapped address space, not the memory loaded, grows with the file size between collections
+ * - the files are hashed in parallel on a ForkJoinPool, the waits are done through ForkJoinPool.managedBlock,
+ *   so the pool adds threads instead of running out of them while producers and consumers wait on each other
+ */
+public class FileHasher {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // end of file marker, the ring doesn't support null values
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final String algorithm;
+    private final int chunkSize;
+    // chunks on each file's ring
+    private final int depth;
+    private final LockFreeSemaphore inFlight;
+    private final ForkJoinPool pool;
+
+    public FileHasher(String algorithm){
+        this(algorithm, DEFAULT_CHUNK_SIZE, 4, 2 * Runtime.getRuntime().availableProcessors(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param depth chunks each file can have loaded ahead of the digest
+     * @param maxInFlight chunks mapped and not yet digested, across all the files
+     */
+    public FileHasher(String algorithm, int chunkSize, int depth, int maxInFlight, ForkJoinPool pool){
+        if(chunkSize <= 0 || depth <= 0 || maxInFlight <= 0){
+            throw new IllegalArgumentException("chunkSize, depth and maxInFlight must be positive");
+        }
+        // fails now instead of on each file
+        newDigest(algorithm);
+        this.algorithm = algorithm;
+        this.chunkSize = chunkSize;
+        this.depth = depth;
+        this.inFlight = new LockFreeSemaphore(maxInFlight);
+        this.pool = pool;
+    }
+
+    private static MessageDigest newDigest(String algorithm){
+        try{
+            return MessageDigest.getInstance(algorithm);
+        }catch(NoSuchAlgorithmException e){
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Hashes a single file, the chunks are produced on the pool and digested by the calling thread.
+     */
+    public byte[] hash(Path file) throws IOException, InterruptedException {
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = ch.size();
+            LockFreeRingBuffer<ByteBuffer> ring = LockFreeRingBuffer.spsc(depth);
+            AtomicBoolean stop = new AtomicBoolean();
+            ForkJoinTask<Void> producer = pool.submit(() -> {
+                produce(ch, size, ring, stop);
+                return null;
+            });
+            MessageDigest digest = newDigest(algorithm);
+            boolean eof = false;
+            try{
+                ByteBuffer chunk;
+                while((chunk = take(ring)) != EOF){
+                    try{
+                        digest.update(chunk);
+                    }finally{
+                        inFlight.release();
+                    }
+                }
+                eof = true;
+            }finally{
+                if(!eof){
+                    // the producer may be waiting for room on the ring, or for the permits on it
+                    stop.set(true);
+                    drain(ring);
+                }
+            }
+            try{
+                producer.get();
+            }catch(ExecutionException e){
+                throw unwrap(e);
+            }
+            return digest.digest();
+        }
+    }
+
+    private void produce(FileChannel ch, long size, LockFreeRingBuffer<ByteBuffer> ring, AtomicBoolean stop)
+            throws InterruptedException {
+        try{
+            for(long pos = 0 ; pos<size && !stop.get() ; pos += chunkSize){
+                acquire(inFlight);
+                boolean queued = false;
+                try{
+                    MappedByteBuffer chunk = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(chunkSize, size - pos));
+                    // faults in the pages here, so the consumer never waits for the disk
+                    chunk.load();
+                    put(ring, chunk);
+                    queued = true;
+                }catch(IOException e){
+                    throw new UncheckedIOException(e);
+                }finally{
+                    if(!queued){
+                        inFlight.release();
+                    }
+                }
+            }
+        }finally{
+            // also on failure, so the consumer doesn't wait forever
+            put(ring, EOF);
+        }
+    }
+
+    // used when the consumer fails, until the producer finishes
+    private void drain(LockFreeRingBuffer<ByteBuffer> ring) throws InterruptedException {
+        while(take(ring) != EOF){
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Hashes the files in parallel, returning the hashes in the order of the given files.
+     */
+    public Map<Path, byte[]> hashAll(Collection<Path> files) throws IOException, InterruptedException {
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(files.size());
+        for(Path f : files){
+            tasks.add(pool.submit(() -> {
+                try{
+                    return hash(f);
+                }catch(IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        Map<Path, byte[]> hashes = new LinkedHashMap<>();
+        int i = 0;
+        for(Path f : files){
+            try{
+                hashes.put(f, tasks.get(i++).get());
+            }catch(ExecutionException e){
+                throw unwrap(e);
+            }
+        }
+        return hashes;
+    }
+
+    // the pool wraps the checked exceptions of a Callable in a RuntimeException,
+    // and get may wrap that again in a copy made on the calling thread, so the whole chain is searched
+    static IOException unwrap(ExecutionException e) throws InterruptedException {
+        Throwable cause = e.getCause();
+        for(Throwable t = cause ; t != null ; t = t.getCause()){
+            if(t instanceof InterruptedException){
+                throw (InterruptedException) t;
+            }
+            if(t instanceof IOException){
+                return (IOException) t;
+            }
+        }
+        if(cause instanceof RuntimeException){
+            throw (RuntimeException) cause;
+        }
+        if(cause instanceof Error){
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    // waits that let the pool compensate for a blocked worker
+
+    private static <T> T take(LockFreeRingBuffer<T> ring) throws InterruptedException {
+        T value = ring.poll();
+        if(value != null){
+            return value;
+        }
+        Take<T> b = new Take<>(ring);
+        ForkJoinPool.managedBlock(b);
+        return b.value;
+    }
+
+    private static <T> void put(LockFreeRingBuffer<T> ring, T value) throws InterruptedException {
+        if(!ring.offer(value)){
+            ForkJoinPool.managedBlock(new Put<>(ring, value));
+        }
+    }
+
+    private static void acquire(LockFreeSemaphore sem) throws InterruptedException {
+        if(!sem.tryAcquire(1)){
+            ForkJoinPool.managedBlock(new Acquire(sem));
+        }
+    }
+
+    private static class Take<T> implements ForkJoinPool.ManagedBlocker {
+        private final LockFreeRingBuffer<T> ring;
+        T value;
+
+        Take(LockFreeRingBuffer<T> ring){
+            this.ring = ring;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            value = ring.take();
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable(){
+            return value != null || (value = ring.poll()) != null;
+        }
+    }
+
+    private static class Put<T> implements ForkJoinPool.ManagedBlocker {
+        private final LockFreeRingBuffer<T> ring;
+        private final T value;
+        private boolean done;
+
+        Put(LockFreeRingBuffer<T> ring, T value){
+            this.ring = ring;
+            this.value = value;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            ring.put(value);
+            done = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable(){
+            return done || (done = ring.offer(value));
+        }
+    }
+
+    private static class Acquire implements ForkJoinPool.ManagedBlocker {
+        private final LockFreeSemaphore sem;
+        private boolean done;
+
+        Acquire(LockFreeSemaphore sem){
+            this.sem = sem;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            sem.acquire();
+            done = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable(){
+            return done || (done = sem.tryAcquire(1));
+        }
+    }
+
+    static String toHex(byte[] bytes){
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes){
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Usage: FileHasher [-a algorithm] file...
+     * Prints the hashes in the same format as sha256sum.
+     */
+    public static void main(String[] args) throws Exception {
+        String algorithm = "SHA-256";
+        int first = 0;
+        if(args.length > 1 && args[0].equals("-a")){
+            algorithm = args[1];
+            first = 2;
+        }
+        List<Path> files = new ArrayList<>();
+        for(int i = first ; i<args.length ; ++i){
+            files.add(Paths.get(args[i]));
+        }
+        long start = System.nanoTime();
+        Map<Path, byte[]> hashes = new FileHasher(algorithm).hashAll(files);
+        long elapsed = System.nanoTime() - start;
+        long bytes = 0;
+        for(Map.Entry<Path, byte[]> e : hashes.entrySet()){
+            System.out.println(toHex(e.getValue()) + "  " + e.getKey());
+            bytes += e.getKey().toFile().length();
+        }
+        System.err.printf("%d files, %d MB in %d ms%n", hashes.size(), bytes >> 20, elapsed / 1000000);
+    }
+}
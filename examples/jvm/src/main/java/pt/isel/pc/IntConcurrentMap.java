@@ -0,0 +1,264 @@
+package pt.isel.pc;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/**
+ * Concurrent map with primitive int keys, using open addressing with linear probing
+ * - the entries are immutable and a removed entry is replaced by a tombstone, so get never takes a lock nor allocates
+ * - writers are serialized by a lock selected by the key hash, so a key is never inserted twice,
+ *   and claim the free slots with a CAS, since keys of other stripes may probe the same slots
+ * - the resize takes all the locks and publishes a new table, the old one stays valid for the readers using it
+ * - null values are not supported, since get returns null when the key is absent
+ */
+public class IntConcurrentMap<V> implements Iterable<V> {
+
+    private static class Entry {
+        public final int key;
+        public final Object value;
+        public Entry(int key, Object value){
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final Entry TOMBSTONE = new Entry(0, null);
+
+    private static final int STRIPES = 16;
+    private static final int MIN_CAPACITY = 16;
+
+    // replaced as a whole on resize
+    private volatile AtomicReferenceArray<Entry> table;
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    // live entries
+    private final AtomicInteger size = new AtomicInteger();
+    // live entries plus tombstones, used to decide when to resize
+    private final AtomicInteger used = new AtomicInteger();
+
+    public IntConcurrentMap(){
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param capacity expected number of keys
+     */
+    public IntConcurrentMap(int capacity){
+        table = new AtomicReferenceArray<>(tableSizeFor(capacity));
+        for(int i = 0 ; i<STRIPES ; ++i){
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    // power of two with a load factor of at most 1/2
+    private static int tableSizeFor(int capacity){
+        int n = MIN_CAPACITY;
+        while(n < capacity * 2){
+            n <<= 1;
+        }
+        return n;
+    }
+
+    private static int hash(int key){
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private ReentrantLock lockFor(int h){
+        // the high bits, since the low ones select the slot
+        return locks[h >>> 28];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key){
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        int i = hash(key) & mask;
+        do{
+            Entry e = t.get(i);
+            if(e == null){
+                return null;
+            }
+            if(e != TOMBSTONE && e.key == key){
+                return (V) e.value;
+            }
+            i = (i + 1) & mask;
+        }while(true);
+    }
+
+    /**
+     * Returns the value for the key, creating it with factory if absent.
+     * The factory is called inside a lock, so it must not use this map.
+     */
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(int key, IntFunction<? extends V> factory){
+        // let's be optimistic
+        V value = get(key);
+        if(value != null){
+            return value;
+        }
+        int h = hash(key);
+        ReentrantLock lock = lockFor(h);
+        do{
+            AtomicReferenceArray<Entry> t;
+            lock.lock();
+            try{
+                t = table;
+                int mask = t.length() - 1;
+                int i = h & mask;
+                int free = -1;
+                Entry e;
+                while((e = t.get(i)) != null){
+                    if(e == TOMBSTONE){
+                        if(free < 0){
+                            free = i;
+                        }
+                    }else if(e.key == key){
+                        return (V) e.value;
+                    }
+                    i = (i + 1) & mask;
+                }
+                // not found, and only the writers of this stripe could insert it
+                // a null slot must be reserved first, so that the table never gets full
+                if(free >= 0 || used.incrementAndGet() <= t.length() * 3 / 4){
+                    if(value == null){
+                        value = factory.apply(key);
+                    }
+                    Entry ne = new Entry(key, value);
+                    // the slot may be claimed by a key of another stripe, so probe again on failure
+                    if(free >= 0 ? t.compareAndSet(free, TOMBSTONE, ne) : t.compareAndSet(i, null, ne)){
+                        size.incrementAndGet();
+                        return value;
+                    }
+                    if(free < 0){
+                        used.decrementAndGet();
+                    }
+                    continue;
+                }
+                used.decrementAndGet();
+            }finally{
+                lock.unlock();
+            }
+            // must be done outside the lock, to take all of them in order
+            resize(t);
+        }while(true);
+    }
+
+    /**
+     * Removes the key only if it is mapped to this value (compared by reference).
+     */
+    public boolean remove(int key, V value){
+        int h = hash(key);
+        ReentrantLock lock = lockFor(h);
+        lock.lock();
+        try{
+            AtomicReferenceArray<Entry> t = table;
+            int mask = t.length() - 1;
+            int i = h & mask;
+            Entry e;
+            while((e = t.get(i)) != null){
+                if(e != TOMBSTONE && e.key == key){
+                    if(e.value != value){
+                        return false;
+                    }
+                    // no concurrent updates on this slot, since keys of other stripes only claim null slots and tombstones
+                    t.set(i, TOMBSTONE);
+                    size.decrementAndGet();
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            return false;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    // rebuilds the table without the tombstones, unless another thread already did it
+    private void resize(AtomicReferenceArray<Entry> observed){
+        for(ReentrantLock l : locks){
+            l.lock();
+        }
+        try{
+            if(table != observed){
+                return;
+            }
+            AtomicReferenceArray<Entry> nt = new AtomicReferenceArray<>(tableSizeFor(size.get() + 1));
+            int mask = nt.length() - 1;
+            int n = 0;
+            for(int i = 0 ; i<observed.length() ; ++i){
+                Entry e = observed.get(i);
+                if(e == null || e == TOMBSTONE){
+                    continue;
+                }
+                int j = hash(e.key) & mask;
+                while(nt.get(j) != null){
+                    j = (j + 1) & mask;
+                }
+                nt.set(j, e);
+                n += 1;
+            }
+            used.set(n);
+            // volatile write, publishes the new table
+            table = nt;
+        }finally{
+            for(ReentrantLock l : locks){
+                l.unlock();
+            }
+        }
+    }
+
+    /**
+     * Only exact when there are no concurrent updates.
+     */
+    public int size(){
+        return size.get();
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    /**
+     * Weakly consistent iteration over the values,
+     * the values added or removed during the iteration may or may not be observed.
+     */
+    @Override
+    public Iterator<V> iterator(){
+        AtomicReferenceArray<Entry> t = table;
+        return new Iterator<V>(){
+            private int i = 0;
+            private Entry next = advance();
+
+            private Entry advance(){
+                while(i < t.length()){
+                    Entry e = t.get(i++);
+                    if(e != null && e != TOMBSTONE){
+                        return e;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext(){
+                return next != null;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next(){
+                if(next == null){
+                    throw new NoSuchElementException();
+                }
+                V value = (V) next.value;
+                next = advance();
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,111 @@
+package pt.isel.pc;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Countdown event (as .NET's CountdownEvent) with no lock
+ * - the count is a single word changed by CAS, the signal that brings it to zero sets a LockFreeManualResetEvent,
+ *   so the waiting is all done by the event
+ * - once at zero the count can't be incremented again (tryAddCount returns false), so the event is never reset
+ */
+public class LockFreeCountdownEvent {
+
+    private volatile int count;
+    private static final AtomicIntegerFieldUpdater<LockFreeCountdownEvent> COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(LockFreeCountdownEvent.class, "count");
+
+    private final LockFreeManualResetEvent event;
+
+    public LockFreeCountdownEvent(int initialCount){
+        this(initialCount, SpinPolicy.DISABLED);
+    }
+
+    /**
+     * @param spin how long the waiters spin before parking, SpinPolicy.DISABLED (the default) to never spin
+     */
+    public LockFreeCountdownEvent(int initialCount, SpinPolicy spin){
+        if(initialCount < 0){
+            throw new IllegalArgumentException("initialCount must not be negative");
+        }
+        count = initialCount;
+        event = new LockFreeManualResetEvent(spin);
+        if(initialCount == 0){
+            event.set();
+        }
+    }
+
+    public int getCurrentCount(){
+        return count;
+    }
+
+    public boolean isSet(){
+        return count == 0;
+    }
+
+    /**
+     * Returns true if this signal brought the count to zero.
+     */
+    public boolean signal(){
+        return signal(1);
+    }
+
+    public boolean signal(int n){
+        if(n <= 0){
+            throw new IllegalArgumentException("n must be positive");
+        }
+        do{
+            int observed = count;
+            if(observed < n){
+                throw new IllegalStateException("signalled more times than the count");
+            }
+            if(COUNT.compareAndSet(this, observed, observed - n)){
+                if(observed == n){
+                    event.set();
+                    return true;
+                }
+                return false;
+            }
+        }while(true);
+    }
+
+    /**
+     * Returns false if the count already reached zero.
+     */
+    public boolean tryAddCount(int n){
+        if(n <= 0){
+            throw new IllegalArgumentException("n must be positive");
+        }
+        do{
+            int observed = count;
+            if(observed == 0){
+                return false;
+            }
+            if(observed > Integer.MAX_VALUE - n){
+                throw new IllegalStateException("count overflow");
+            }
+            if(COUNT.compareAndSet(this, observed, observed + n)){
+                return true;
+            }
+        }while(true);
+    }
+
+    public void await() throws InterruptedException {
+        event.waitForSet();
+    }
+
+    /**
+     * Returns false if the count didn't reach zero before the timeout.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return event.waitForSet(timeout, unit);
+    }
+
+    /**
+     * The returned future completes when the count reaches zero.
+     */
+    public CompletableFuture<Void> waitAsync(){
+        return event.waitAsync();
+    }
+}
@@ -1,65 +1,259 @@
 package pt.isel.pc;
 
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by pedro on 24/11/16.
+ * - the state is a single word, either SET or the top of a Treiber stack of waiters (null when there are none),
+ *   so there is no window between observing the state and becoming a waiter
+ * - set swaps the whole stack out and releases all the waiters, with no lock
+ * - a waiter is either a parked thread or a future, and is released or cancelled (on timeout or interrupt)
+ *   by a CAS on its status, so set and the timeout never both win
+ * - a cancelled waiter is unlinked at once when on the top of the stack, the ones below the top are unlinked
+ *   by a sweep from the top every SWEEP_THRESHOLD cancels, so a gate that stays reset doesn't keep them all
+ * - cancelling a waitAsync future cancels its waiter, the sweep also drops the futures completed by the caller
  */
 public class LockFreeManualResetEvent {
 
-    private volatile boolean isSet = false;
+    private static final Object SET = new Object();
+    // cancels below the top between sweeps
+    private static final int SWEEP_THRESHOLD = 32;
 
-    private final Lock lock = new ReentrantLock();
-    private final Condition cond = lock.newCondition();
-    private volatile int waiting = 0;
-    private int version = 0;
+    private static class Node {
+        private static final int WAITING = 0;
+        private static final int RELEASED = 1;
+        private static final int CANCELLED = 2;
+
+        // only one of thread and future is used
+        public final Thread thread;
+        public final CompletableFuture<Void> future;
+        // also written by the sweeps, which only ever skip cancelled nodes
+        public volatile Node next;
+        public volatile int status = WAITING;
+
+        public Node(Thread thread, CompletableFuture<Void> future){
+            this.thread = thread;
+            this.future = future;
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<Node> STATUS =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "status");
+
+    private static class WaiterFuture extends CompletableFuture<Void> {
+        private final LockFreeManualResetEvent event;
+        // set before the node is pushed, so before the future is returned
+        Node node;
+
+        WaiterFuture(LockFreeManualResetEvent event){
+            this.event = event;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning){
+            if(STATUS.compareAndSet(node, Node.WAITING, Node.CANCELLED)){
+                event.cancelled(node);
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    // SET, null or the top waiter
+    private volatile Object state = null;
+
+    private static final AtomicReferenceFieldUpdater<LockFreeManualResetEvent, Object> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(LockFreeManualResetEvent.class, Object.class, "state");
+
+    private final SpinPolicy spin;
+
+    // cancels not unlinked from the top since the last sweep
+    private volatile int unswept = 0;
+
+    private static final AtomicIntegerFieldUpdater<LockFreeManualResetEvent> UNSWEPT =
+            AtomicIntegerFieldUpdater.newUpdater(LockFreeManualResetEvent.class, "unswept");
 
     public LockFreeManualResetEvent(){
+        this(SpinPolicy.DISABLED);
+    }
 
+    /**
+     * @param spin how long waitForSet spins before parking, SpinPolicy.DISABLED (the default) to never spin
+     */
+    public LockFreeManualResetEvent(SpinPolicy spin){
+        this.spin = spin;
     }
 
     public void set(){
-        isSet = true;
-        if(waiting == 0){
+        Object observed = STATE.getAndSet(this, SET);
+        if(observed == SET){
             return;
         }
-        lock.lock();
-        try{
-            version += 1;
-            cond.signalAll();
-        }finally{
-            lock.unlock();
+        // the stack is now owned by this thread
+        for(Node n = (Node) observed ; n != null ; n = n.next){
+            if(STATUS.compareAndSet(n, Node.WAITING, Node.RELEASED)){
+                if(n.thread != null){
+                    LockSupport.unpark(n.thread);
+                }else{
+                    n.future.complete(null);
+                }
+            }
         }
     }
 
     public void reset(){
-        isSet = false;
+        // if there are waiters the event is already reset
+        STATE.compareAndSet(this, SET, null);
     }
 
-    public void waitForSet() throws InterruptedException{
-        if(isSet){
+    public boolean isSet(){
+        return state == SET;
+    }
+
+    // returns false if the event is set, otherwise the node is on the stack
+    private boolean push(Node node){
+        do{
+            Object observed = state;
+            if(observed == SET){
+                return false;
+            }
+            Node top = (Node) observed;
+            // skip the cancelled waiters on the top, since we are replacing it anyway
+            while(top != null && top.status == Node.CANCELLED){
+                top = top.next;
+            }
+            node.next = top;
+            if(STATE.compareAndSet(this, observed, node)){
+                return true;
+            }
+        }while(true);
+    }
+
+    private void cancelled(Node node){
+        if(STATE.compareAndSet(this, node, node.next)){
             return;
         }
-        lock.lock();
-        try{
-            int myversion = version;
-            waiting += 1;
-            if(isSet == true){
+        // below the top, only one of the threads reaching the threshold sweeps
+        do{
+            int observed = unswept;
+            int next = observed + 1 == SWEEP_THRESHOLD ? 0 : observed + 1;
+            if(UNSWEPT.compareAndSet(this, observed, next)){
+                if(next == 0){
+                    sweep();
+                }
+                return;
+            }
+        }while(true);
+    }
+
+    // unlinks the cancelled waiters, and the futures completed by the caller, from the top to the bottom
+    // each write only skips cancelled nodes, so concurrent sweeps, pushes and sets never lose a waiting node
+    private void sweep(){
+        Object observed = state;
+        if(observed == SET){
+            return;
+        }
+        Node pred = null;
+        Node n = (Node) observed;
+        while(n != null){
+            Node next = n.next;
+            if(n.future != null && n.future.isDone()){
+                STATUS.compareAndSet(n, Node.WAITING, Node.CANCELLED);
+            }
+            if(n.status != Node.CANCELLED){
+                pred = n;
+            }else if(pred != null){
+                pred.next = next;
+            }else if(!STATE.compareAndSet(this, n, next)){
+                // a push or a set changed the top, the rest is left for the next sweep
                 return;
             }
+            n = next;
+        }
+    }
+
+    public void waitForSet() throws InterruptedException{
+        waitForSet(0, false);
+    }
+
+    /**
+     * Returns false if the event was not set before the timeout.
+     */
+    public boolean waitForSet(long timeout, TimeUnit unit) throws InterruptedException {
+        return waitForSet(unit.toNanos(timeout), true);
+    }
 
-            do {
-                cond.await();
-                if(myversion != version){
-                    return;
+    private boolean waitForSet(long nanos, boolean timed) throws InterruptedException {
+        if(state == SET){
+            return true;
+        }
+        if(Thread.interrupted()){
+            throw new InterruptedException();
+        }
+        if(timed && nanos <= 0){
+            return false;
+        }
+        // a set may be close, so check for a while before pushing a node and parking
+        int spins = spin.spins();
+        for(int i = 0 ; i<spins ; ++i){
+            SpinPolicy.onSpinWait();
+            if(state == SET){
+                spin.succeeded(i);
+                return true;
+            }
+            if(Thread.currentThread().isInterrupted()){
+                break;
+            }
+        }
+        spin.failed();
+        Node node = new Node(Thread.currentThread(), null);
+        if(!push(node)){
+            return true;
+        }
+        long deadline = timed ? System.nanoTime() + nanos : 0;
+        do{
+            if(timed){
+                LockSupport.parkNanos(this, nanos);
+            }else{
+                LockSupport.park(this);
+            }
+            // park may also return spuriously
+            if(node.status == Node.RELEASED){
+                return true;
+            }
+            if(Thread.interrupted()){
+                if(STATUS.compareAndSet(node, Node.WAITING, Node.CANCELLED)){
+                    cancelled(node);
+                    throw new InterruptedException();
                 }
-            }while(true);
+                // released in the meanwhile, so keep the interrupt for later
+                Thread.currentThread().interrupt();
+                return true;
+            }
+            if(timed && (nanos = deadline - System.nanoTime()) <= 0){
+                if(STATUS.compareAndSet(node, Node.WAITING, Node.CANCELLED)){
+                    cancelled(node);
+                    return false;
+                }
+                return true;
+            }
+        }while(true);
+    }
 
-        }finally{
-            waiting -= 1;
-            lock.unlock();
+    /**
+     * The returned future completes when the event is set.
+     * Cancelling it removes the waiter, a new completed future is returned if the event is already set.
+     */
+    public CompletableFuture<Void> waitAsync(){
+        if(state == SET){
+            return CompletableFuture.completedFuture(null);
         }
+        WaiterFuture future = new WaiterFuture(this);
+        Node node = new Node(null, future);
+        future.node = node;
+        return push(node) ? future : CompletableFuture.completedFuture(null);
     }
 }
@@ -1,48 +1,185 @@
 package pt.isel.pc;
 
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by pedro on 21/11/16.
+ * Michael-Scott multi-producer multi-consumer queue
+ * - head always points to a dummy node, the first value is on head.next
+ * - tail may lag behind the last node by at most one position
+ * - null values are rejected (NullPointerException), since dequeue returns null when empty
+ * - the dequeued node becomes the new dummy and its value is cleared, so it isn't kept reachable
+ * - the links are plain volatile fields updated with field updaters,
+ *   so each enqueue only allocates the node itself
  */
 public class LockFreeQueue<T> {
 
     private static class Node<T>{
-        public AtomicReference<Node<T>> next;
-        public final T value;
+        public volatile Node<T> next;
+        // cleared once the node becomes the dummy, so the queue doesn't keep the last dequeued value reachable
+        public T value;
         public Node(T value){
             this.value = value;
         }
     }
 
-    private AtomicReference<Node<T>> head;
-    private AtomicReference<Node<T>> tail;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<LockFreeQueue, Node> HEAD =
+            AtomicReferenceFieldUpdater.newUpdater(LockFreeQueue.class, Node.class, "head");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<LockFreeQueue, Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(LockFreeQueue.class, Node.class, "tail");
+
+    private volatile Node<T> head;
+    private volatile Node<T> tail;
+
+    // approximate, since it is not updated atomically with the links
+    private final LongAdder size = new LongAdder();
 
     public LockFreeQueue(){
         Node<T> dummyNode = new Node<T>(null);
-        head.set(dummyNode);
-        tail.set(dummyNode);
+        head = dummyNode;
+        tail = dummyNode;
     }
 
     public void enqueue(T value){
+        if(value == null){
+            throw new NullPointerException();
+        }
         Node<T> mynode = new Node<>(value);
+        link(mynode, mynode);
+        size.increment();
+    }
+
+    // links the already chained nodes [first..last] after the current last node
+    private void link(Node<T> first, Node<T> last){
         while(true) {
-            Node<T> currTail = tail.get();
-            Node<T> tailNext = currTail.next.get();
+            Node<T> currTail = tail;
+            Node<T> tailNext = currTail.next;
             if (tailNext == null) {
                 // (1)
-                if (currTail.next.compareAndSet(null, mynode)) {
+                if (NEXT.compareAndSet(currTail, null, first)) {
                     // (2)
-                    tail.compareAndSet(currTail, mynode);
+                    TAIL.compareAndSet(this, currTail, last);
                     return;
                 }
             }else{
                 // try to finish another Thread's enqueue
                 // (2)
-                tail.compareAndSet(currTail, tailNext);
+                TAIL.compareAndSet(this, currTail, tailNext);
+            }
+        }
+    }
+
+    /**
+     * Enqueues all the values with a single CAS on the last node's link,
+     * so they become visible to the consumers at the same time and in order.
+     */
+    public void offerAll(Collection<? extends T> values){
+        Iterator<? extends T> it = values.iterator();
+        if(!it.hasNext()){
+            return;
+        }
+        Node<T> first = new Node<>(nonNull(it.next()));
+        Node<T> last = first;
+        int count = 1;
+        while(it.hasNext()){
+            Node<T> node = new Node<>(nonNull(it.next()));
+            // not yet published, so no concurrency on these links
+            NEXT.lazySet(last, node);
+            last = node;
+            count += 1;
+        }
+        link(first, last);
+        size.add(count);
+    }
+
+    private static <T> T nonNull(T value){
+        if(value == null){
+            throw new NullPointerException();
+        }
+        return value;
+    }
+
+    public T dequeue(){
+        while(true){
+            Node<T> currHead = head;
+            Node<T> currTail = tail;
+            Node<T> headNext = currHead.next;
+            if(currHead != head){
+                // head changed while reading next, so headNext may be stale
+                continue;
+            }
+            if(headNext == null){
+                return null;
+            }
+            if(currHead == currTail){
+                // tail is lagging behind, finish the other Thread's enqueue
+                TAIL.compareAndSet(this, currTail, headNext);
+                continue;
+            }
+            // the value must be read before the CAS, since afterwards
+            // headNext becomes the dummy node and may be dequeued by others
+            T value = headNext.value;
+            // null only if already cleared by the dequeue that moved head, so the CAS would fail anyway
+            if(value != null && HEAD.compareAndSet(this, currHead, headNext)){
+                // headNext is now the dummy node
+                headNext.value = null;
+                size.decrement();
+                return value;
             }
         }
     }
 
+    public T peek(){
+        while(true){
+            Node<T> currHead = head;
+            Node<T> headNext = currHead.next;
+            if(headNext == null){
+                return null;
+            }
+            T value = headNext.value;
+            // if head did not move, then headNext was the first node when value was read
+            // (null if it was dequeued and cleared in the meanwhile)
+            if(value != null && currHead == head){
+                return value;
+            }
+        }
+    }
 
+    public boolean isEmpty(){
+        return head.next == null;
+    }
+
+    /**
+     * Dequeues at most max values into the given collection.
+     * Returns the number of transferred values.
+     */
+    public int drainTo(Collection<? super T> c, int max){
+        int count = 0;
+        while(count < max){
+            T value = dequeue();
+            if(value == null){
+                break;
+            }
+            c.add(value);
+            count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * Approximate number of values in the queue,
+     * only exact when there are no concurrent enqueues or dequeues.
+     */
+    public int size(){
+        long s = size.sum();
+        return s < 0 ? 0 : (s > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) s);
+    }
 }
@@ -0,0 +1,248 @@
+package pt.isel.pc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded array based queue, with sequence numbered slots
+ * - slot i is free for the producer of position p when sequence[i] == p
+ *   and holds the value for the consumer of position p when sequence[i] == p + 1
+ * - offer/poll never block, put/take only use the lock when they must wait
+ *   (same fast path/slow path pattern as LockFreeSemaphore)
+ * - the single producer/single consumer variants claim positions without a CAS
+ * - null values are not supported, since poll returns null when empty
+ */
+public class LockFreeRingBuffer<T> {
+
+    // head and tail are surrounded by padding, so that producers and consumers
+    // don't invalidate each other's cache line (false sharing)
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    // next position to produce
+    private volatile long tail;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+    // next position to consume
+    private volatile long head;
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<LockFreeRingBuffer> TAIL =
+            AtomicLongFieldUpdater.newUpdater(LockFreeRingBuffer.class, "tail");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<LockFreeRingBuffer> HEAD =
+            AtomicLongFieldUpdater.newUpdater(LockFreeRingBuffer.class, "head");
+
+    private final int mask;
+    // plain array, published by the sequence updates
+    private final Object[] buffer;
+    private final AtomicLongArray sequence;
+
+    private final boolean singleProducer;
+    private final boolean singleConsumer;
+
+    // only used when put/take must wait
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // mutated inside the lock but observed outside the lock
+    private volatile int waitingConsumers;
+    private volatile int waitingProducers;
+
+    public LockFreeRingBuffer(int capacity){
+        this(capacity, false, false);
+    }
+
+    private LockFreeRingBuffer(int capacity, boolean singleProducer, boolean singleConsumer){
+        // with a single slot the "free for the next lap" and "full" sequence numbers would be the same
+        int size = 2;
+        while(size < capacity){
+            size <<= 1;
+        }
+        mask = size - 1;
+        buffer = new Object[size];
+        sequence = new AtomicLongArray(size);
+        for(int i = 0 ; i<size ; ++i){
+            sequence.set(i, i);
+        }
+        this.singleProducer = singleProducer;
+        this.singleConsumer = singleConsumer;
+    }
+
+    public static <T> LockFreeRingBuffer<T> mpmc(int capacity){
+        return new LockFreeRingBuffer<>(capacity, false, false);
+    }
+
+    // many threads may call offer/put, only one thread may call poll/take
+    public static <T> LockFreeRingBuffer<T> mpsc(int capacity){
+        return new LockFreeRingBuffer<>(capacity, false, true);
+    }
+
+    // only one thread may call offer/put and only one thread may call poll/take
+    public static <T> LockFreeRingBuffer<T> spsc(int capacity){
+        return new LockFreeRingBuffer<>(capacity, true, true);
+    }
+
+    public int capacity(){
+        return mask + 1;
+    }
+
+    private boolean tryOffer(T value){
+        long pos = tail;
+        do{
+            int ix = (int) pos & mask;
+            long dif = sequence.get(ix) - pos;
+            if(dif == 0){
+                if(singleProducer){
+                    TAIL.lazySet(this, pos + 1);
+                }else if(!TAIL.compareAndSet(this, pos, pos + 1)){
+                    pos = tail;
+                    continue;
+                }
+                // the slot is now owned by this thread
+                buffer[ix] = value;
+                // volatile write, must not be reordered with the read of waitingConsumers
+                sequence.set(ix, pos + 1);
+                return true;
+            }
+            if(dif < 0){
+                // the consumer of the previous lap did not yet free the slot
+                return false;
+            }
+            // another producer claimed pos
+            pos = tail;
+        }while(true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T tryPoll(){
+        long pos = head;
+        do{
+            int ix = (int) pos & mask;
+            long dif = sequence.get(ix) - (pos + 1);
+            if(dif == 0){
+                if(singleConsumer){
+                    HEAD.lazySet(this, pos + 1);
+                }else if(!HEAD.compareAndSet(this, pos, pos + 1)){
+                    pos = head;
+                    continue;
+                }
+                // the slot is now owned by this thread
+                T value = (T) buffer[ix];
+                buffer[ix] = null;
+                // free the slot for the producer of the next lap
+                // volatile write, must not be reordered with the read of waitingProducers
+                sequence.set(ix, pos + mask + 1);
+                return value;
+            }
+            if(dif < 0){
+                // the producer did not yet publish the value
+                return null;
+            }
+            // another consumer claimed pos
+            pos = head;
+        }while(true);
+    }
+
+    public boolean offer(T value){
+        if(!tryOffer(value)){
+            return false;
+        }
+        if(waitingConsumers != 0){
+            signal(notEmpty);
+        }
+        return true;
+    }
+
+    public T poll(){
+        T value = tryPoll();
+        if(value != null && waitingProducers != 0){
+            signal(notFull);
+        }
+        return value;
+    }
+
+    private void signal(Condition cond){
+        lock.lock();
+        try{
+            cond.signal();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public void put(T value) throws InterruptedException {
+        // let's be optimistic
+        if(offer(value)){
+            return;
+        }
+
+        // slow path, we must wait
+        lock.lock();
+        waitingProducers += 1;
+        try{
+            do{
+                if(tryOffer(value)){
+                    if(waitingConsumers != 0){
+                        notEmpty.signal();
+                    }
+                    return;
+                }
+                try{
+                    notFull.await();
+                }catch(InterruptedException e){
+                    notFull.signal();
+                    throw e;
+                }
+            }while(true);
+        }finally{
+            waitingProducers -= 1;
+            lock.unlock();
+        }
+    }
+
+    public T take() throws InterruptedException {
+        // let's be optimistic
+        T value = poll();
+        if(value != null){
+            return value;
+        }
+
+        // slow path, we must wait
+        lock.lock();
+        waitingConsumers += 1;
+        try{
+            do{
+                value = tryPoll();
+                if(value != null){
+                    if(waitingProducers != 0){
+                        notFull.signal();
+                    }
+                    return value;
+                }
+                try{
+                    notEmpty.await();
+                }catch(InterruptedException e){
+                    notEmpty.signal();
+                    throw e;
+                }
+            }while(true);
+        }finally{
+            waitingConsumers -= 1;
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty(){
+        return head == tail;
+    }
+
+    /**
+     * Approximate number of values, only exact when there are no concurrent operations.
+     */
+    public int size(){
+        long s = tail - head;
+        return s < 0 ? 0 : (s > capacity() ? capacity() : (int) s);
+    }
+}
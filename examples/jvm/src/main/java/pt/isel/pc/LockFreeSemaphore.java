@@ -1,81 +1,291 @@
 package pt.isel.pc;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by pedro on 21/11/16.
+ * - the permits can be split over several stripes, each one on its own cache line
+ * - a thread acquires from and releases to the stripe selected by its id,
+ *   stealing from the other stripes when its own is empty
+ * - the lock and condition are only used when all the stripes are empty
+ * - multi unit acquires gather the units from several stripes if needed, giving them back on failure
  */
 public class LockFreeSemaphore {
 
-    // NOT protected by the lock
-    private final AtomicInteger permits;
+    // ints per stripe, so that each stripe is on a different cache line
+    private static final int PAD = 16;
 
+    // NOT protected by the lock
+    private final AtomicIntegerArray permits;
+    private final int stripes;
 
     private final Lock lock;
     private final Condition cond;
     // mutated inside the lock but observed outside the lock
     private volatile int waiting;
+    // changed and observed inside the lock, number of waiters for more than one unit
+    private int multiUnitWaiting;
+
+    // null if disabled, so the fast path only pays a null check
+    private final SynchronizerMetrics metrics;
+    private final SpinPolicy spin;
 
     public LockFreeSemaphore(int initialPermits){
-        permits = new AtomicInteger(initialPermits);
+        this(initialPermits, 1);
+    }
+
+    /**
+     * @param stripes number of permit stripes, rounded up to a power of two
+     */
+    public LockFreeSemaphore(int initialPermits, int stripes){
+        this(initialPermits, stripes, null);
+    }
+
+    /**
+     * @param metrics null to disable them
+     */
+    public LockFreeSemaphore(int initialPermits, int stripes, SynchronizerMetrics metrics){
+        this(initialPermits, stripes, metrics, SpinPolicy.DISABLED);
+    }
+
+    /**
+     * @param spin how long acquire spins before blocking, SpinPolicy.DISABLED (the default) to never spin
+     */
+    public LockFreeSemaphore(int initialPermits, int stripes, SynchronizerMetrics metrics, SpinPolicy spin){
+        this.metrics = metrics;
+        this.spin = spin;
+        int n = 1;
+        while(n < stripes){
+            n <<= 1;
+        }
+        this.stripes = n;
+        // leading and trailing padding, so the first and last stripes don't share lines with other objects
+        permits = new AtomicIntegerArray((n + 2) * PAD);
+        for(int i = 0 ; i<n ; ++i){
+            permits.set(slot(i), initialPermits / n + (i < initialPermits % n ? 1 : 0));
+        }
         lock = new ReentrantLock();
         cond = lock.newCondition();
         waiting = 0;
     }
 
-    private boolean tryAcquire(){
+    private static void checkUnits(int units){
+        // a negative acquire would add permits and a negative release would take them
+        if(units <= 0){
+            throw new IllegalArgumentException("units must be positive");
+        }
+    }
+
+    private static int slot(int stripe){
+        return (stripe + 1) * PAD;
+    }
+
+    private int homeStripe(){
+        return (int) Thread.currentThread().getId() & (stripes - 1);
+    }
+
+    private boolean tryAcquire(int slot, int units){
         do{
-            int observed = permits.get();
-            if(observed == 0){
+            int observed = permits.get(slot);
+            if(observed < units){
                 return false;
             }
-            if(permits.compareAndSet(observed, observed-1)){
+            if(permits.compareAndSet(slot, observed, observed - units)){
                 return true;
             }
         }while(true);
     }
 
+    // takes at most units from the stripe, returning how many were taken
+    private int takeUpTo(int slot, int units){
+        do{
+            int observed = permits.get(slot);
+            if(observed == 0){
+                return 0;
+            }
+            int taken = Math.min(observed, units);
+            if(permits.compareAndSet(slot, observed, observed - taken)){
+                return taken;
+            }
+        }while(true);
+    }
+
+    /**
+     * Never waits, returns false if the units are not available.
+     */
+    public boolean tryAcquire(int units){
+        checkUnits(units);
+        return tryAcquire(units, false);
+    }
+
+    private boolean tryAcquire(int units, boolean lockHeld){
+        int home = homeStripe();
+        int mask = stripes - 1;
+        // own stripe first, then steal from the others
+        for(int i = 0 ; i<stripes ; ++i){
+            if(tryAcquire(slot((home + i) & mask), units)){
+                return true;
+            }
+        }
+        if(units == 1){
+            return false;
+        }
+        // no single stripe has enough, gather the units from several stripes
+        int taken = 0;
+        for(int i = 0 ; i<stripes && taken < units ; ++i){
+            taken += takeUpTo(slot((home + i) & mask), units - taken);
+        }
+        if(taken == units){
+            return true;
+        }
+        if(taken > 0){
+            if(lockHeld){
+                // all the waiters are serialized by the lock, so none of them missed these units
+                permits.addAndGet(slot(home), taken);
+            }else{
+                // give them back, waking any waiter that missed them in the meanwhile
+                release(taken);
+            }
+        }
+        return false;
+    }
+
     public void acquire() throws InterruptedException {
+        acquire(1, 0, false);
+    }
+
+    /**
+     * Returns false if the units were not acquired before the timeout.
+     */
+    public boolean acquire(int units, long timeout, TimeUnit unit) throws InterruptedException {
+        checkUnits(units);
+        return acquire(units, unit.toNanos(timeout), true);
+    }
+
+    private boolean acquire(int units, long nanos, boolean timed) throws InterruptedException {
         // let's be optimistic
-        if(tryAcquire()){
-            return;
+        if(tryAcquire(units)){
+            if(metrics != null){
+                metrics.onFastPath();
+            }
+            return true;
+        }
+        if(timed && nanos <= 0){
+            if(metrics != null){
+                metrics.onRejected();
+            }
+            return false;
         }
 
+        // a release may be close, so retry for a while before taking the lock and blocking
+        int spins = spin.spins();
+        // once someone is waiting, the released permits are theirs
+        for(int i = 0 ; i<spins && waiting == 0 ; ++i){
+            SpinPolicy.onSpinWait();
+            if(Thread.currentThread().isInterrupted()){
+                break;
+            }
+            if(tryAcquire(units)){
+                spin.succeeded(i);
+                if(metrics != null){
+                    metrics.onFastPath();
+                }
+                return true;
+            }
+        }
+        spin.failed();
+
         // slow path, we must wait
         lock.lock();
         waiting += 1;
+        if(units > 1){
+            multiUnitWaiting += 1;
+        }
+        // only measured when there are metrics, 0 while not yet waited
+        long start = 0;
+        if(metrics != null){
+            metrics.onSlowPath();
+        }
         try{
             do {
-                if(tryAcquire()){
-                    return;
+                if(tryAcquire(units, true)){
+                    // cascade the wakeup, the release may have been enough for other waiters
+                    if(waiting > 1 && availablePermits() > 0){
+                        cond.signal();
+                    }
+                    if(metrics != null && start != 0){
+                        metrics.onGranted(System.nanoTime() - start);
+                    }
+                    return true;
+                }
+                if(timed && nanos <= 0){
+                    if(metrics != null){
+                        metrics.onTimeout(System.nanoTime() - start);
+                    }
+                    return false;
+                }
+                if(metrics != null && start == 0){
+                    start = System.nanoTime();
                 }
                 try {
-                    cond.await();
+                    if(timed){
+                        nanos = cond.awaitNanos(nanos);
+                    }else{
+                        cond.await();
+                    }
                 } catch (InterruptedException e) {
+                    if(metrics != null){
+                        metrics.onInterrupted(System.nanoTime() - start);
+                    }
                     cond.signal();
                     throw e;
                 }
             }while(true);
         } finally{
             waiting -= 1;
+            if(units > 1){
+                multiUnitWaiting -= 1;
+            }
             lock.unlock();
         }
     }
 
     public void release(){
-        permits.incrementAndGet();
+        release(1);
+    }
+
+    public void release(int units){
+        checkUnits(units);
+        permits.addAndGet(slot(homeStripe()), units);
         if(waiting == 0){
             return;
         }
         lock.lock();
         try{
-            cond.signal();
+            // a single unit is enough for any single unit waiter,
+            // otherwise we don't know which waiters can proceed
+            if(units == 1 && multiUnitWaiting == 0){
+                cond.signal();
+            }else{
+                cond.signalAll();
+            }
         }finally{
             lock.unlock();
         }
     }
 
+    /**
+     * Sum of all the stripes, only exact when there are no concurrent acquires or releases.
+     */
+    public int availablePermits(){
+        int sum = 0;
+        for(int i = 0 ; i<stripes ; ++i){
+            sum += permits.get(slot(i));
+        }
+        return sum;
+    }
 }
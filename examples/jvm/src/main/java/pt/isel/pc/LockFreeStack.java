@@ -1,9 +1,15 @@
 package pt.isel.pc;
 
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Created by pedro on 14/11/16.
+ * - Treiber stack with an elimination array used as backoff
+ * - when a CAS on tos fails, a push offers its node on a random elimination slot
+ *   and a concurrent pop can take it from there, without touching tos
+ * - the time spent waiting on the elimination array grows exponentially with the number of failures
  */
 public class LockFreeStack<T> {
 
@@ -15,29 +21,103 @@ public class LockFreeStack<T> {
         }
     }
 
-    private AtomicReference<Node<T>> tos =
-            new AtomicReference(null);
+    private static final int MIN_SPINS = 16;
+    private static final int MAX_SPINS = 1 << 12;
+
+    // top of stack, updated through TOS to avoid an AtomicReference indirection
+    private volatile Node<T> tos = null;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<LockFreeStack, Node> TOS =
+            AtomicReferenceFieldUpdater.newUpdater(LockFreeStack.class, Node.class, "tos");
+
+    // each slot is either null or holds the node of a waiting push
+    // null if elimination is disabled
+    private final AtomicReferenceArray<Node<T>> elimination;
+
+    public LockFreeStack(){
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * @param eliminationWidth number of elimination slots, 0 disables elimination
+     */
+    public LockFreeStack(int eliminationWidth){
+        elimination = eliminationWidth > 0
+                ? new AtomicReferenceArray<>(eliminationWidth)
+                : null;
+    }
 
     public void push(T t){
         Node<T> node = new Node<>(t);
-        Node<T> observedTos;
+        int spins = MIN_SPINS;
         do {
-            observedTos = tos.get();
+            Node<T> observedTos = tos;
             node.next = observedTos;
-        }while(!tos.compareAndSet(observedTos, node));
+            if(TOS.compareAndSet(this, observedTos, node)){
+                return;
+            }
+            // contention on tos, back off through the elimination array
+            if(elimination != null && tryEliminatePush(node, spins)){
+                return;
+            }
+            spins = Math.min(spins << 1, MAX_SPINS);
+        }while(true);
     }
 
     public T pop() {
         Node<T> observedTos;
         Node<T> candidateTos;
         T candidateValue;
+        int spins = MIN_SPINS;
         do{
-            observedTos = tos.get();
+            observedTos = tos;
             if(observedTos == null) return null;
             candidateValue = observedTos.value;
             candidateTos = observedTos.next;
-        }while(!tos.compareAndSet(observedTos, candidateTos));
-        return candidateValue;
-        //return observedTos.value;
+            if(TOS.compareAndSet(this, observedTos, candidateTos)){
+                return candidateValue;
+                //return observedTos.value;
+            }
+            // contention on tos, back off through the elimination array
+            if(elimination != null){
+                Node<T> eliminated = tryEliminatePop(spins);
+                if(eliminated != null){
+                    return eliminated.value;
+                }
+            }
+            spins = Math.min(spins << 1, MAX_SPINS);
+        }while(true);
+    }
+
+    // offers the node on a random slot and waits at most spins iterations for a pop to take it
+    private boolean tryEliminatePush(Node<T> node, int spins){
+        int slot = ThreadLocalRandom.current().nextInt(elimination.length());
+        if(!elimination.compareAndSet(slot, null, node)){
+            // slot used by another push
+            return false;
+        }
+        for(int i = 0 ; i<spins ; ++i){
+            if(elimination.get(slot) != node){
+                // taken by a pop
+                return true;
+            }
+        }
+        // withdraw the offer, failing means a pop took it in the meanwhile
+        return !elimination.compareAndSet(slot, node, null);
+    }
+
+    // looks for a waiting push during at most spins iterations, starting on a random slot
+    private Node<T> tryEliminatePop(int spins){
+        int width = elimination.length();
+        int slot = ThreadLocalRandom.current().nextInt(width);
+        for(int i = 0 ; i<spins ; ++i){
+            Node<T> node = elimination.get(slot);
+            if(node != null && elimination.compareAndSet(slot, node, null)){
+                return node;
+            }
+            slot = slot + 1 == width ? 0 : slot + 1;
+        }
+        return null;
     }
 }
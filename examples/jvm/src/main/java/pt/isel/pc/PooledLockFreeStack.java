@@ -0,0 +1,92 @@
+package pt.isel.pc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocation free version of LockFreeStack, for a bounded number of values
+ * - the nodes are slots of preallocated arrays, identified by their index
+ * - free slots are kept on a stamped free list shared by all the threads, so a slot freed by a pop
+ *   is available to any pushing thread (no per-thread caches, which kept producer/consumer pairs "full")
+ * - tos and the free list head hold the slot index on the low 32 bits and a stamp on the high 32 bits,
+ *   which is incremented on every change, so a recycled slot never makes a stale CAS succeed (ABA)
+ */
+public class PooledLockFreeStack<T> {
+
+    private static final int NIL = -1;
+
+    // plain arrays, published by the CAS on the list heads
+    private final Object[] values;
+    private final int[] next;
+
+    private final AtomicLong tos;
+    private final AtomicLong free;
+
+    public PooledLockFreeStack(int capacity){
+        values = new Object[capacity];
+        next = new int[capacity];
+        for(int i = 0 ; i<capacity ; ++i){
+            next[i] = i + 1 < capacity ? i + 1 : NIL;
+        }
+        tos = new AtomicLong(pack(0, NIL));
+        free = new AtomicLong(pack(0, capacity > 0 ? 0 : NIL));
+    }
+
+    private static long pack(int stamp, int index){
+        return ((long) stamp << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    private static int index(long word){
+        return (int) word;
+    }
+
+    private static int stamp(long word){
+        return (int) (word >>> 32);
+    }
+
+    private void pushIndex(AtomicLong head, int ix){
+        long observed;
+        do{
+            observed = head.get();
+            next[ix] = index(observed);
+        }while(!head.compareAndSet(observed, pack(stamp(observed) + 1, ix)));
+    }
+
+    private int popIndex(AtomicLong head){
+        long observed;
+        int ix;
+        do{
+            observed = head.get();
+            ix = index(observed);
+            if(ix == NIL) return NIL;
+            // next[ix] may be stale if ix was meanwhile popped and recycled,
+            // but then the stamp changed and the CAS fails
+        }while(!head.compareAndSet(observed, pack(stamp(observed) + 1, next[ix])));
+        return ix;
+    }
+
+    /**
+     * Returns false if all the slots are in use.
+     */
+    public boolean push(T t){
+        int ix = popIndex(free);
+        if(ix == NIL){
+            return false;
+        }
+        values[ix] = t;
+        pushIndex(tos, ix);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T pop(){
+        int ix = popIndex(tos);
+        if(ix == NIL){
+            return null;
+        }
+        // the slot is now owned by this thread
+        T value = (T) values[ix];
+        values[ix] = null;
+        pushIndex(free, ix);
+        return value;
+    }
+}
@@ -1,6 +1,5 @@
 package pt.isel.pc;
 
-import java.util.LinkedList;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -9,12 +8,15 @@ import java.util.concurrent.locks.ReentrantLock;
  * Created by pedro on 31/10/16.
  * - FIFO acquire policy
  * - Minimizes context switches
+ * - release grants the units directly to all the requests it can satisfy
  */
 public class SemaphoreUsingLocksAndConditions {
 
-    private static class Request{
+    private static class Request extends DListNode {
         public final int units;
         public final Condition condition;
+        // set by the releaser when the units are granted to this request
+        public boolean done;
 
         public Request(int units, Lock lock){
             this.units = units;
@@ -24,44 +26,51 @@ public class SemaphoreUsingLocksAndConditions {
 
     private int available;
     private final Lock mlock = new ReentrantLock();
-    private final LinkedList<Request> queue = new LinkedList<>();
+    private final DListNode queue = DListNode.newList();
 
     public SemaphoreUsingLocksAndConditions(int initial){
         available = initial;
     }
 
-    private void conditionalSignal(){
-        Request r = queue.peek();
-        if(r != null && available >= r.units){
+    // grants the units to all the requests, in FIFO order, that can be satisfied
+    // each granted thread only has to return, without reevaluating the state
+    private void grantWaiters(){
+        Request r;
+        while((r = DListNode.firstEntry(queue)) != null && available >= r.units){
+            DListNode.remove(r);
+            available -= r.units;
+            r.done = true;
             r.condition.signal();
         }
     }
 
     private void giveUp(Request myReq){
-        queue.remove(myReq);
-        conditionalSignal();
+        DListNode.remove(myReq);
+        grantWaiters();
     }
 
     public boolean acquire(int units, long nanos) throws InterruptedException{
         mlock.lock();
         try{
-            if(queue.size() == 0 && available >= units){
+            if(DListNode.isListEmpty(queue) && available >= units){
                 available -= units;
                 return true;
             }
             Request myReq = new Request(units, mlock);
-            queue.addLast(myReq);
+            DListNode.addLast(queue, myReq);
             while(true){
                 try {
                     nanos = myReq.condition.awaitNanos(nanos);
                 }catch(InterruptedException e){
+                    if(myReq.done){
+                        // the units were already granted, so keep them
+                        Thread.currentThread().interrupt();
+                        return true;
+                    }
                     giveUp(myReq);
                     throw e;
                 }
-                if(queue.peek() == myReq && available >= units){
-                    queue.removeFirst();
-                    available -= units;
-                    conditionalSignal();
+                if(myReq.done){
                     return true;
                 }
                 if(nanos <= 0){
@@ -78,7 +87,7 @@ public class SemaphoreUsingLocksAndConditions {
         mlock.lock();
         try{
             available += units;
-            conditionalSignal();
+            grantWaiters();
         }finally{
             mlock.unlock();
         }
@@ -1,65 +1,156 @@
 package pt.isel.pc;
 
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by pedro on 29/10/16.
+ * - FIFO acquire policy
+ * - while no one is waiting, acquire and release are a single CAS and never take the lock
+ * - once someone waits, all the updates go through the lock and release grants the units directly
  */
 public class SemaphoreWithFifoPolicy {
 
-    private static class Request {
+    private static class Request extends DListNode {
         public final int units;
         public final Condition condition;
+        // set by the releaser when the units are granted to this request
+        public boolean done;
         public Request(int units, Lock lock){
             this.units = units;
             condition = lock.newCondition();
         }
     }
 
-    private final LinkedList<Request> queue = new LinkedList<>();
+    // used to store a waiting flag on bit_31 and the available units on the remaining bits
+    // the waiting flag is observed outside the lock however it is only changed inside the lock
+    // by having both the flag and the units on the same integer we have atomic updates of both
+    private final AtomicInteger state;
+    // waiting mask
+    private static final int MASK = 1 << 31;
+
+    private final DListNode queue = DListNode.newList();
     private final Lock lock = new ReentrantLock();
-    private int available;
+
+    // null if disabled, so the fast path only pays a null check
+    private final SynchronizerMetrics metrics;
 
     public SemaphoreWithFifoPolicy(int initial){
-        available = initial;
+        this(initial, null);
+    }
+
+    /**
+     * @param metrics null to disable them
+     */
+    public SemaphoreWithFifoPolicy(int initial, SynchronizerMetrics metrics){
+        state = new AtomicInteger(initial);
+        this.metrics = metrics;
+    }
+
+    private static boolean waiting(int observed){
+        return observed < 0;
+    }
+
+    private static int available(int observed){
+        return observed & ~MASK;
+    }
+
+    private boolean tryAcquire(int units){
+        do{
+            int observed = state.get();
+            if(waiting(observed) || available(observed) < units){
+                return false;
+            }
+            if(state.compareAndSet(observed, observed - units)){
+                return true;
+            }
+        }while(true);
     }
 
-    private void conditionalNotify(){
-        Request r = queue.peek();
-        if(r != null && available >= r.units){
+    // must be called inside the lock, with the waiting flag set
+    // while the flag is set there are no updates outside the lock
+    private void grantWaiters(){
+        int available = available(state.get());
+        Request r;
+        while((r = DListNode.firstEntry(queue)) != null && available >= r.units){
+            DListNode.remove(r);
+            available -= r.units;
+            r.done = true;
             r.condition.signal();
         }
+        // if no one is waiting, clear the flag
+        state.set(DListNode.isListEmpty(queue) ? available : available | MASK);
+    }
+
+    private void giveUp(Request request){
+        DListNode.remove(request);
+        // the removed request may have been blocking the ones behind it
+        grantWaiters();
     }
 
     public boolean acquire(int units, long nanos) throws InterruptedException {
+        // let's be optimistic
+        if(tryAcquire(units)){
+            if(metrics != null){
+                metrics.onFastPath();
+            }
+            return true;
+        }
+
+        // slow path
         lock.lock();
         try{
-            if(queue.size() == 0 && available > units){
-                available -= units;
-                return true;
+            if(metrics != null){
+                metrics.onSlowPath();
             }
+            do{
+                // because the units could be released in the meanwhile
+                int observed = state.get();
+                if(!waiting(observed) && available(observed) >= units){
+                    if(state.compareAndSet(observed, observed - units)){
+                        return true;
+                    }
+                    continue;
+                }
+                // from now on the releasers must take the lock
+                if(state.compareAndSet(observed, observed | MASK)){
+                    break;
+                }
+            }while(true);
             Request request = new Request(units, lock);
-            queue.addLast(request);
+            DListNode.addLast(queue, request);
+            long start = metrics != null ? System.nanoTime() : 0;
             while(true){
                 try{
                     nanos = request.condition.awaitNanos(nanos);
                 }catch(InterruptedException e){
-                    queue.remove(request);
-                    conditionalNotify();
+                    if(request.done){
+                        // the units were already granted, so keep them
+                        if(metrics != null){
+                            metrics.onGranted(System.nanoTime() - start);
+                        }
+                        Thread.currentThread().interrupt();
+                        return true;
+                    }
+                    if(metrics != null){
+                        metrics.onInterrupted(System.nanoTime() - start);
+                    }
+                    giveUp(request);
                     throw e;
                 }
-                if(request == queue.peek() && available >= units){
-                    queue.removeFirst();
-                    available -= units;
-                    conditionalNotify();
+                if(request.done){
+                    if(metrics != null){
+                        metrics.onGranted(System.nanoTime() - start);
+                    }
                     return true;
                 }
                 if(nanos <= 0){
-                    queue.remove(request);
-                    conditionalNotify();
+                    if(metrics != null){
+                        metrics.onTimeout(System.nanoTime() - start);
+                    }
+                    giveUp(request);
                     return false;
                 }
             }
@@ -69,10 +160,23 @@ public class SemaphoreWithFifoPolicy {
     }
 
     public void release(int units){
+        do{
+            int observed = state.get();
+            if(waiting(observed)){
+                break;
+            }
+            if(state.compareAndSet(observed, observed + units)){
+                return;
+            }
+        }while(true);
+
+        // slow path, someone may be waiting
         lock.lock();
         try{
-            available += units;
-            conditionalNotify();
+            // the flag may have been cleared in the meanwhile, so the update must be atomic
+            if(waiting(state.addAndGet(units))){
+                grantWaiters();
+            }
         }finally{
             lock.unlock();
         }
@@ -0,0 +1,101 @@
+package pt.isel.pc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * How long a slow path spins, retrying its fast path, before blocking
+ * - the window is learned from the recent spins: each success after i iterations moves
+ *   the average towards i, each time the spin fails and the thread blocks the average is halved,
+ *   so long hold times quickly bring the window down to MIN_SPINS
+ * - the average is updated without synchronization, a lost update only makes it a bit older
+ * - the callers do the spin loop themselves, calling onSpinWait on each iteration,
+ *   so that the retry doesn't need a (possibly allocated) lambda
+ * - the callers stop spinning once someone is queued, so spinning never overtakes a waiter,
+ *   and once interrupted, so the interrupt is seen by the slow path without delay
+ * - the synchronizers only spin when given a policy, SpinPolicyBenchmark shows whether it pays off on a machine
+ */
+public class SpinPolicy {
+
+    private static final int MIN_SPINS = 8;
+    // on a single CPU spinning only burns the time slice of the thread being waited for, as in AQS and Exchanger
+    private static final int DEFAULT_MAX_SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0;
+
+    /**
+     * Never spins.
+     */
+    public static final SpinPolicy DISABLED = new SpinPolicy(0);
+
+    // Thread.onSpinWait only exists since Java 9, so it is called through a method handle when available
+    private static final MethodHandle ON_SPIN_WAIT = findOnSpinWait();
+
+    private static MethodHandle findOnSpinWait(){
+        try{
+            return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        }catch(ReflectiveOperationException e){
+            return null;
+        }
+    }
+
+    /**
+     * Spin loop hint, a no-op when the platform doesn't have one.
+     */
+    public static void onSpinWait(){
+        if(ON_SPIN_WAIT != null){
+            try{
+                ON_SPIN_WAIT.invokeExact();
+            }catch(Throwable e){
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final int maxSpins;
+    // average spins needed by the recent successes, in fixed point with 3 fractional bits
+    private int average;
+
+    /**
+     * Adaptive window, that never spins on a single CPU.
+     */
+    public SpinPolicy(){
+        this(DEFAULT_MAX_SPINS);
+    }
+
+    /**
+     * @param maxSpins upper bound of the window, 0 disables spinning
+     */
+    public SpinPolicy(int maxSpins){
+        this.maxSpins = maxSpins;
+    }
+
+    /**
+     * Number of iterations to spin before blocking.
+     */
+    public int spins(){
+        if(maxSpins == 0){
+            return 0;
+        }
+        // twice the average, so that most of the waits that took about the average succeed
+        return Math.min(maxSpins, MIN_SPINS + (average >> 2));
+    }
+
+    /**
+     * The fast path succeeded after the given number of spin iterations.
+     */
+    public void succeeded(int spins){
+        int avg = average;
+        // moves 1/8 of the way towards spins
+        average = avg + (((spins << 3) - avg) >> 3);
+    }
+
+    /**
+     * The spin failed and the caller is going to block.
+     */
+    public void failed(){
+        // not written when already 0, so a shared policy that never spins is never written
+        if(average != 0){
+            average >>= 1;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package pt.isel.pc;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Counter for many concurrent writers and few readers
+ * - the value is split over cells, each thread increments the cell selected by its id,
+ *   so different threads normally don't CAS on the same word
+ * - each cell is padded to its own cache line (no false sharing between cells)
+ * - when a CAS fails the next cell is tried, instead of retrying on the contended one
+ */
+public class StripedCounter {
+
+    private static class Cell {
+        long p0, p1, p2, p3, p4, p5, p6;
+        volatile long value;
+        long q0, q1, q2, q3, q4, q5, q6;
+    }
+
+    private static final AtomicLongFieldUpdater<Cell> VALUE =
+            AtomicLongFieldUpdater.newUpdater(Cell.class, "value");
+
+    private final Cell[] cells;
+    private final int mask;
+
+    public StripedCounter(){
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedCounter(int stripes){
+        int size = 1;
+        while(size < stripes){
+            size <<= 1;
+        }
+        cells = new Cell[size];
+        for(int i = 0 ; i<size ; ++i){
+            cells[i] = new Cell();
+        }
+        mask = size - 1;
+    }
+
+    public void add(long x){
+        // thread ids are sequential, so threads started together use different cells
+        int ix = (int) Thread.currentThread().getId() & mask;
+        do{
+            Cell c = cells[ix];
+            long observed = c.value;
+            if(VALUE.compareAndSet(c, observed, observed + x)){
+                return;
+            }
+            ix = (ix + 1) & mask;
+        }while(true);
+    }
+
+    public void increment(){
+        add(1);
+    }
+
+    /**
+     * Exact when there are no concurrent updates,
+     * otherwise concurrent adds may or may not be included.
+     */
+    public long sum(){
+        long sum = 0;
+        for(Cell c : cells){
+            sum += c.value;
+        }
+        return sum;
+    }
+
+    /**
+     * Each cell is atomically swapped with zero, so every add is either
+     * included in the returned value or kept for the next sum.
+     */
+    public long sumThenReset(){
+        long sum = 0;
+        for(Cell c : cells){
+            sum += VALUE.getAndSet(c, 0);
+        }
+        return sum;
+    }
+}
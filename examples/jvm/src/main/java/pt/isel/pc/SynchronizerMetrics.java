@@ -0,0 +1,231 @@
+package pt.isel.pc;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and wait time histogram shared by the synchronizers that accept one
+ * - the counters are StripedCounters, so the fast path of different threads don't write on the same line
+ * - the wait times are recorded on a log-linear histogram (as HdrHistogram), with 8 sub-buckets per power of two,
+ *   so any value is reported with at most 12.5% error
+ * - recording never allocates, snapshot() copies everything into an immutable Snapshot
+ * - synchronizers created without metrics only pay a null check
+ */
+public class SynchronizerMetrics implements SynchronizerMetricsMBean {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    // completed without taking a lock
+    private final StripedCounter fastPath = new StripedCounter();
+    // had to take the lock, whether they waited or not
+    private final StripedCounter slowPath = new StripedCounter();
+    // waited and were granted
+    private final StripedCounter waited = new StripedCounter();
+    private final StripedCounter timedOut = new StripedCounter();
+    // failed without waiting, e.g. because maxWaiting was reached
+    private final StripedCounter rejected = new StripedCounter();
+    private final StripedCounter interrupted = new StripedCounter();
+    // async waits cancelled by the caller, including the grants handed over to an already cancelled future
+    private final StripedCounter cancelled = new StripedCounter();
+
+    // wait times, in nanos, of the ones that waited, whatever the outcome
+    private final AtomicLongArray waitTimes = new AtomicLongArray(BUCKETS);
+
+    private ObjectName name;
+
+    public void onFastPath(){
+        fastPath.increment();
+    }
+
+    public void onSlowPath(){
+        slowPath.increment();
+    }
+
+    public void onRejected(){
+        rejected.increment();
+    }
+
+    public void onGranted(long waitNanos){
+        waited.increment();
+        recordWait(waitNanos);
+    }
+
+    public void onTimeout(long waitNanos){
+        timedOut.increment();
+        recordWait(waitNanos);
+    }
+
+    public void onInterrupted(long waitNanos){
+        interrupted.increment();
+        recordWait(waitNanos);
+    }
+
+    public void onCancelled(long waitNanos){
+        cancelled.increment();
+        recordWait(waitNanos);
+    }
+
+    private void recordWait(long nanos){
+        waitTimes.incrementAndGet(bucket(nanos));
+    }
+
+    // values below SUB have their own bucket,
+    // the others are split by the position of the most significant bit and the SUB_BITS below it
+    private static int bucket(long v){
+        if(v < SUB){
+            return v < 0 ? 0 : (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((v >>> shift) & (SUB - 1));
+    }
+
+    // highest value recorded on the bucket
+    private static long highestValue(int bucket){
+        if(bucket < SUB){
+            return bucket;
+        }
+        int shift = bucket / SUB - 1;
+        long sub = bucket % SUB;
+        return ((SUB + sub + 1) << shift) - 1;
+    }
+
+    public Snapshot snapshot(){
+        long[] buckets = new long[BUCKETS];
+        for(int i = 0 ; i<BUCKETS ; ++i){
+            buckets[i] = waitTimes.get(i);
+        }
+        return new Snapshot(fastPath.sum(), slowPath.sum(), waited.sum(), timedOut.sum(),
+                rejected.sum(), interrupted.sum(), cancelled.sum(), buckets);
+    }
+
+    /**
+     * Values read without stopping the writers, so the counters are not exactly from the same instant.
+     */
+    public static class Snapshot {
+        public final long fastPath;
+        public final long slowPath;
+        public final long waited;
+        public final long timedOut;
+        public final long rejected;
+        public final long interrupted;
+        public final long cancelled;
+        private final long[] waitTimes;
+        private final long waitCount;
+
+        private Snapshot(long fastPath, long slowPath, long waited, long timedOut,
+                         long rejected, long interrupted, long cancelled, long[] waitTimes){
+            this.fastPath = fastPath;
+            this.slowPath = slowPath;
+            this.waited = waited;
+            this.timedOut = timedOut;
+            this.rejected = rejected;
+            this.interrupted = interrupted;
+            this.cancelled = cancelled;
+            this.waitTimes = waitTimes;
+            long count = 0;
+            for(long c : waitTimes){
+                count += c;
+            }
+            waitCount = count;
+        }
+
+        public long waitCount(){
+            return waitCount;
+        }
+
+        /**
+         * Wait time, in nanos, below which are percentile% of the waits, 0 if no one waited.
+         */
+        public long waitPercentile(double percentile){
+            long target = (long) Math.ceil(waitCount * percentile / 100);
+            long seen = 0;
+            for(int i = 0 ; i<waitTimes.length ; ++i){
+                seen += waitTimes[i];
+                if(seen >= target && seen > 0){
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString(){
+            return String.format(
+                    "fastPath=%d slowPath=%d waited=%d timedOut=%d rejected=%d interrupted=%d cancelled=%d wait(p50=%dns p99=%dns max=%dns)",
+                    fastPath, slowPath, waited, timedOut, rejected, interrupted, cancelled,
+                    waitPercentile(50), waitPercentile(99), waitPercentile(100));
+        }
+    }
+
+    /**
+     * Registers on the platform MBean server, as pt.isel.pc:type=SynchronizerMetrics,name=...
+     */
+    public void register(String name) throws JMException {
+        ObjectName on = new ObjectName("pt.isel.pc:type=SynchronizerMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        this.name = on;
+    }
+
+    public void unregister() throws JMException {
+        if(name != null){
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    // SynchronizerMetricsMBean
+
+    @Override
+    public long getFastPath(){
+        return fastPath.sum();
+    }
+
+    @Override
+    public long getSlowPath(){
+        return slowPath.sum();
+    }
+
+    @Override
+    public long getWaited(){
+        return waited.sum();
+    }
+
+    @Override
+    public long getTimedOut(){
+        return timedOut.sum();
+    }
+
+    @Override
+    public long getRejected(){
+        return rejected.sum();
+    }
+
+    @Override
+    public long getInterrupted(){
+        return interrupted.sum();
+    }
+
+    @Override
+    public long getCancelled(){
+        return cancelled.sum();
+    }
+
+    @Override
+    public long getWaitP50Nanos(){
+        return snapshot().waitPercentile(50);
+    }
+
+    @Override
+    public long getWaitP99Nanos(){
+        return snapshot().waitPercentile(99);
+    }
+
+    @Override
+    public long getWaitMaxNanos(){
+        return snapshot().waitPercentile(100);
+    }
+}
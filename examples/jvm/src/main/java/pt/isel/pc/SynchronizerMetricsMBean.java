@@ -0,0 +1,17 @@
+package pt.isel.pc;
+
+/**
+ * JMX view of SynchronizerMetrics, the wait times are in nanos.
+ */
+public interface SynchronizerMetricsMBean {
+    long getFastPath();
+    long getSlowPath();
+    long getWaited();
+    long getTimedOut();
+    long getRejected();
+    long getInterrupted();
+    long getCancelled();
+    long getWaitP50Nanos();
+    long getWaitP99Nanos();
+    long getWaitMaxNanos();
+}
@@ -0,0 +1,234 @@
+package pt.isel.pc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Runs a graph of tasks where each task starts as soon as all its dependencies complete
+ * (the dotnet/Synch/Graph.cs example, without a thread per path)
+ * - each task has a count of the dependencies not yet completed, the one that brings it to zero starts it,
+ *   so no thread ever blocks waiting for a dependency
+ * - the thread that completes a task runs the first dependent that became ready and submits the others,
+ *   so a chain of tasks runs on the same thread with no executor hops
+ * - a task only depends on tasks already added, so the graph can't have cycles
+ * - a failed task doesn't run its dependents, they complete with the same failure (and so on, transitively),
+ *   the other paths keep running
+ * - the graph completion is a LockFreeCountdownEvent counting the tasks not yet completed
+ */
+public class TaskGraph {
+
+    public static final class Task {
+        private final TaskGraph graph;
+        private final String name;
+        private final Runnable action;
+        // changed only before the start
+        private final List<Task> dependents = new ArrayList<>();
+        private int dependencies;
+
+        // dependencies not yet completed
+        private volatile int pending;
+        private static final AtomicIntegerFieldUpdater<Task> PENDING =
+                AtomicIntegerFieldUpdater.newUpdater(Task.class, "pending");
+
+        // own failure or the first failure of a dependency, written before decrementing pending
+        private volatile Throwable failure;
+        private static final AtomicReferenceFieldUpdater<Task, Throwable> FAILURE =
+                AtomicReferenceFieldUpdater.newUpdater(Task.class, Throwable.class, "failure");
+
+        private volatile boolean done;
+
+        private Task(TaskGraph graph, String name, Runnable action){
+            this.graph = graph;
+            this.name = name;
+            this.action = action;
+        }
+
+        public String name(){
+            return name;
+        }
+
+        public boolean isDone(){
+            return done;
+        }
+
+        /**
+         * Failure of this task, or of the dependency that prevented it from running, null if none (or not yet done).
+         */
+        public Throwable failure(){
+            return done ? failure : null;
+        }
+
+        @Override
+        public String toString(){
+            return name;
+        }
+    }
+
+    private static final int NEW = 0;
+    private static final int STARTED = 1;
+
+    private final Executor executor;
+    private final List<Task> tasks = new ArrayList<>();
+    private volatile int state = NEW;
+    private static final AtomicIntegerFieldUpdater<TaskGraph> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(TaskGraph.class, "state");
+
+    // created on start, once the number of tasks is known
+    private volatile LockFreeCountdownEvent remaining;
+    // first task failure, the ones propagated to the dependents are not recorded here
+    private volatile Throwable failure;
+    private static final AtomicReferenceFieldUpdater<TaskGraph, Throwable> FAILURE =
+            AtomicReferenceFieldUpdater.newUpdater(TaskGraph.class, Throwable.class, "failure");
+
+    public TaskGraph(){
+        this(ForkJoinPool.commonPool());
+    }
+
+    public TaskGraph(Executor executor){
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a task that runs after all the given ones complete successfully.
+     * Must be called before start, by a single thread.
+     */
+    public Task add(String name, Runnable action, Task... dependencies){
+        if(state != NEW){
+            throw new IllegalStateException("graph already started");
+        }
+        Task task = new Task(this, name, action);
+        for(Task d : dependencies){
+            if(d.graph != this){
+                throw new IllegalArgumentException("dependency " + d + " is not on this graph");
+            }
+            d.dependents.add(task);
+            task.dependencies += 1;
+        }
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * Starts all the tasks without dependencies, the others start as their dependencies complete.
+     */
+    public void start(){
+        if(!STATE.compareAndSet(this, NEW, STARTED)){
+            throw new IllegalStateException("graph already started");
+        }
+        remaining = new LockFreeCountdownEvent(tasks.size(), SpinPolicy.DISABLED);
+        // pending is set on all the tasks before any of them runs
+        List<Task> roots = new ArrayList<>();
+        for(Task t : tasks){
+            t.pending = t.dependencies;
+            if(t.dependencies == 0){
+                roots.add(t);
+            }
+        }
+        for(Task t : roots){
+            submit(t);
+        }
+    }
+
+    private void submit(Task task){
+        try{
+            executor.execute(() -> run(task));
+        }catch(RejectedExecutionException e){
+            // the executor is shut down, so fail the task (and its dependents) instead of hanging the graph
+            Task.FAILURE.compareAndSet(task, null, e);
+            FAILURE.compareAndSet(this, null, e);
+            run(task);
+        }
+    }
+
+    private void run(Task task){
+        do{
+            Throwable cause = task.failure;
+            if(cause == null){
+                try{
+                    task.action.run();
+                }catch(Throwable e){
+                    cause = e;
+                    task.failure = e;
+                    FAILURE.compareAndSet(this, null, e);
+                }
+            }
+            task.done = true;
+            Task next = null;
+            for(Task d : task.dependents){
+                if(cause != null){
+                    Task.FAILURE.compareAndSet(d, null, cause);
+                }
+                if(Task.PENDING.decrementAndGet(d) == 0){
+                    if(next == null){
+                        next = d;
+                    }else{
+                        submit(d);
+                    }
+                }
+            }
+            // last, so when the graph completes no task is still touching its dependents
+            remaining.signal();
+            task = next;
+        }while(task != null);
+    }
+
+    public boolean isDone(){
+        LockFreeCountdownEvent r = remaining;
+        return r != null && r.isSet();
+    }
+
+    /**
+     * Waits until all the tasks complete, throwing ExecutionException with the first failure if any task failed.
+     */
+    public void await() throws InterruptedException, ExecutionException {
+        started().await();
+        checkFailure();
+    }
+
+    public void await(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!started().await(timeout, unit)){
+            throw new TimeoutException();
+        }
+        checkFailure();
+    }
+
+    /**
+     * The returned future completes when all the tasks complete, exceptionally with the first failure if any.
+     */
+    public CompletableFuture<Void> waitAsync(){
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        started().waitAsync().thenRun(() -> {
+            Throwable e = failure;
+            if(e != null){
+                f.completeExceptionally(e);
+            }else{
+                f.complete(null);
+            }
+        });
+        return f;
+    }
+
+    private LockFreeCountdownEvent started(){
+        LockFreeCountdownEvent r = remaining;
+        if(r == null){
+            throw new IllegalStateException("graph not started");
+        }
+        return r;
+    }
+
+    private void checkFailure() throws ExecutionException {
+        Throwable e = failure;
+        if(e != null){
+            throw new ExecutionException(e);
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package pt.isel.pc;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Echo server where each client address can only have a limited number of connections being served
+ * (the JVM counterpart of dotnet/Async/TcpServer)
+ * - admission is a ThrottledRegion3 keyed by the client address, a connection is inside the region while open,
+ *   waits (up to the region timeout) while the address has maxInside connections being served,
+ *   and is closed right away when maxWaiting connections are already waiting
+ * - SELECTOR mode: a single thread runs the accepts and all the I/O on a java.nio Selector,
+ *   admission uses TryEnterAsync, so a waiting connection takes no thread
+ *   and is handed back to the selector thread when granted
+ * - THREAD_PER_CONNECTION mode: blocking I/O, one thread per connection, admission uses the blocking TryEnter,
+ *   the threads are virtual when the platform has them (Java 21+), otherwise from a cached pool
+ * - the key is the address hash code, which is the address itself for IPv4, while IPv6 addresses are folded
+ *   into 32 bits, so different IPv6 clients may share a key and its limits
+ */
+public class TcpEchoServer implements AutoCloseable {
+
+    public enum Mode { SELECTOR, THREAD_PER_CONNECTION }
+
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private final InetSocketAddress address;
+    private final ThrottledRegion3 admission;
+    private final Mode mode;
+
+    private ServerSocketChannel server;
+    private Selector selector;
+    private ExecutorService connections;
+    private Thread loop;
+    private volatile boolean running;
+
+    // connections whose admission completed after waiting, handed from the completing thread to the selector thread
+    private final LockFreeQueue<Connection> admitted = new LockFreeQueue<>();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private class Connection {
+        final SocketChannel channel;
+        final int key;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        // set by the thread that completes the admission, read by the selector thread after dequeuing
+        boolean entered;
+        boolean closed;
+
+        Connection(SocketChannel channel, int key){
+            this.channel = channel;
+            this.key = key;
+        }
+
+        // only called once, by the thread that owns the connection
+        void close(){
+            if(closed){
+                return;
+            }
+            closed = true;
+            try{
+                channel.close();
+            }catch(IOException e){
+                // nothing to do, the connection is gone anyway
+            }
+            if(entered){
+                admission.Leave(key);
+            }
+        }
+    }
+
+    public TcpEchoServer(InetSocketAddress address, ThrottledRegion3 admission, Mode mode){
+        this.address = address;
+        this.admission = admission;
+        this.mode = mode;
+    }
+
+    /**
+     * Binds and starts serving, on a new thread.
+     */
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        running = true;
+        if(mode == Mode.SELECTOR){
+            selector = Selector.open();
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            loop = new Thread(this::selectorLoop, "echo-selector");
+        }else{
+            connections = newConnectionExecutor();
+            loop = new Thread(this::acceptLoop, "echo-acceptor");
+        }
+        loop.start();
+    }
+
+    /**
+     * Actual address, useful when bound to port 0.
+     */
+    public InetSocketAddress localAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Connections accepted, whether admitted or not.
+     */
+    public long accepted(){
+        return accepted.get();
+    }
+
+    /**
+     * Connections closed without being served, because the address had too many waiting or the wait timed out.
+     */
+    public long rejected(){
+        return rejected.get();
+    }
+
+    public ThrottledRegion3 admission(){
+        return admission;
+    }
+
+    // the virtual thread executor is looked up by reflection since the tree targets Java 8
+    private static ExecutorService newConnectionExecutor(){
+        try{
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        }catch(ReflectiveOperationException e){
+            return Executors.newCachedThreadPool(r -> {
+                Thread th = Executors.defaultThreadFactory().newThread(r);
+                th.setDaemon(true);
+                return th;
+            });
+        }
+    }
+
+    // collision free only for IPv4
+    private static int keyOf(SocketChannel channel) throws IOException {
+        InetAddress a = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        return a.hashCode();
+    }
+
+    // THREAD_PER_CONNECTION
+
+    private void acceptLoop(){
+        while(running){
+            SocketChannel ch;
+            try{
+                ch = server.accept();
+            }catch(IOException e){
+                // closed by close()
+                break;
+            }
+            accepted.incrementAndGet();
+            try{
+                connections.execute(() -> serve(ch));
+            }catch(RejectedExecutionException e){
+                // closed in the meanwhile
+                closeQuietly(ch);
+                break;
+            }
+        }
+    }
+
+    private void serve(SocketChannel ch){
+        Connection c;
+        try{
+            c = new Connection(ch, keyOf(ch));
+        }catch(IOException e){
+            closeQuietly(ch);
+            return;
+        }
+        try{
+            // returns false right away if the address already has maxWaiting connections waiting
+            c.entered = admission.TryEnter(c.key);
+            if(!c.entered){
+                rejected.incrementAndGet();
+                return;
+            }
+            ByteBuffer buf = c.buffer;
+            while(ch.read(buf) >= 0){
+                buf.flip();
+                while(buf.hasRemaining()){
+                    ch.write(buf);
+                }
+                buf.clear();
+            }
+        }catch(InterruptedException e){
+            // the executor was shut down
+        }catch(IOException e){
+            // the client went away
+        }finally{
+            c.close();
+        }
+    }
+
+    // SELECTOR
+
+    private void selectorLoop(){
+        try{
+            while(running){
+                selector.select();
+                registerAdmitted();
+                for(SelectionKey k : selector.selectedKeys()){
+                    try{
+                        if(!k.isValid()){
+                            continue;
+                        }
+                        if(k.isAcceptable()){
+                            accept();
+                        }else if(k.isReadable()){
+                            read(k);
+                        }else if(k.isWritable()){
+                            write(k);
+                        }
+                    }catch(IOException e){
+                        Object c = k.attachment();
+                        if(c != null){
+                            ((Connection) c).close();
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }catch(IOException | RuntimeException e){
+            if(running){
+                Thread th = Thread.currentThread();
+                th.getUncaughtExceptionHandler().uncaughtException(th, e);
+            }
+        }finally{
+            running = false;
+            for(SelectionKey k : selector.keys()){
+                Object c = k.attachment();
+                if(c != null){
+                    ((Connection) c).close();
+                }
+            }
+            closeQuietly(selector);
+            // the ones admitted after this are closed by admittedLater itself
+            registerAdmitted();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while((ch = server.accept()) != null){
+            accepted.incrementAndGet();
+            Connection c;
+            try{
+                c = new Connection(ch, keyOf(ch));
+            }catch(IOException e){
+                closeQuietly(ch);
+                continue;
+            }
+            CompletableFuture<Boolean> f = admission.TryEnterAsync(c.key);
+            if(f.isDone()){
+                // entered or rejected without waiting, the common case
+                c.entered = f.join();
+                admit(c);
+            }else{
+                // not reading from it while waiting, so the client's data stays on the socket
+                f.thenAccept(entered -> admittedLater(c, entered));
+            }
+        }
+    }
+
+    private void admittedLater(Connection c, boolean entered){
+        c.entered = entered;
+        // the enqueue publishes entered to the selector thread
+        admitted.enqueue(c);
+        selector.wakeup();
+        // the selector thread may have already done its last drain
+        if(!running){
+            registerAdmitted();
+        }
+    }
+
+    private void registerAdmitted(){
+        Connection c;
+        while((c = admitted.dequeue()) != null){
+            if(!running){
+                c.close();
+                continue;
+            }
+            admit(c);
+        }
+    }
+
+    private void admit(Connection c){
+        if(!c.entered){
+            rejected.incrementAndGet();
+            c.close();
+            return;
+        }
+        try{
+            c.channel.configureBlocking(false);
+            c.channel.register(selector, SelectionKey.OP_READ, c);
+        }catch(IOException | ClosedSelectorException e){
+            c.close();
+        }
+    }
+
+    private void read(SelectionKey k) throws IOException {
+        Connection c = (Connection) k.attachment();
+        ByteBuffer buf = c.buffer;
+        if(c.channel.read(buf) < 0){
+            c.close();
+            return;
+        }
+        buf.flip();
+        c.channel.write(buf);
+        if(buf.hasRemaining()){
+            // the client isn't reading its echoes, so stop reading from it until they are written
+            k.interestOps(SelectionKey.OP_WRITE);
+        }else{
+            buf.clear();
+        }
+    }
+
+    private void write(SelectionKey k) throws IOException {
+        Connection c = (Connection) k.attachment();
+        ByteBuffer buf = c.buffer;
+        c.channel.write(buf);
+        if(!buf.hasRemaining()){
+            buf.clear();
+            k.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable c){
+        if(c == null){
+            return;
+        }
+        try{
+            c.close();
+        }catch(Exception e){
+            // nothing to do
+        }
+    }
+
+    /**
+     * Stops accepting and closes all the connections.
+     */
+    @Override
+    public void close(){
+        running = false;
+        closeQuietly(server);
+        if(loop == null){
+            // never started, or start failed before creating the loop, so only close what it opened
+            closeQuietly(selector);
+            if(connections != null){
+                connections.shutdownNow();
+            }
+            return;
+        }
+        if(mode == Mode.SELECTOR){
+            selector.wakeup();
+        }else{
+            // interrupting a thread blocked on a channel closes it, so this also ends the blocked reads
+            connections.shutdownNow();
+        }
+        try{
+            loop.join();
+            if(connections != null){
+                connections.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        }catch(InterruptedException e){
+            // everything is already stopping, so just keep the interrupt for the caller
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The ThrottledRegion3 timeout, which is an int of nanos, for a timeout in millis.
+     */
+    static int regionTimeout(int timeoutMs){
+        if(timeoutMs < 0 || timeoutMs > TimeUnit.NANOSECONDS.toMillis(Integer.MAX_VALUE)){
+            throw new IllegalArgumentException("timeoutMs must be between 0 and "
+                    + TimeUnit.NANOSECONDS.toMillis(Integer.MAX_VALUE));
+        }
+        return (int) TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    /**
+     * Usage: TcpEchoServer [port] [selector|threads] [maxInside] [maxWaiting] [timeoutMs]
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8888;
+        Mode mode = args.length > 1 && args[1].equals("threads") ? Mode.THREAD_PER_CONNECTION : Mode.SELECTOR;
+        int maxInside = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int maxWaiting = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+        int timeoutMs = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+        SynchronizerMetrics metrics = new SynchronizerMetrics();
+        ThrottledRegion3 admission = new ThrottledRegion3(maxInside, maxWaiting,
+                regionTimeout(timeoutMs), 0, 1, TimeUnit.MINUTES, metrics);
+        metrics.register("TcpEchoServer");
+        TcpEchoServer s = new TcpEchoServer(new InetSocketAddress(port), admission, mode);
+        s.start();
+        System.out.printf("listening on %s (%s)%n", s.localAddress(), mode);
+        do{
+            Thread.sleep(10000);
+            System.out.printf("accepted=%d rejected=%d %s%n", s.accepted(), s.rejected(), metrics.snapshot());
+        }while(true);
+    }
+}
@@ -1,15 +1,17 @@
 package pt.isel.pc;
 
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
 
 /**
  * Created by pedro on 19/11/16.
+ * - idle regions are evicted from the map by retiring them with a CAS from 0 (no one inside or waiting),
+ *   a TryEnter that gets a retired region removes it and retries with a new one
  */
 public class ThrottledRegion2 {
 
@@ -17,7 +19,7 @@ public class ThrottledRegion2 {
     private final int maxWaiting;
     private final int waitTimeout;
 
-    private static class Request
+    private static class Request extends DListNode
     {
         public final Condition condition;
         public boolean done;
@@ -27,8 +29,15 @@ public class ThrottledRegion2 {
         }
     }
 
+    // results of ThrottledRegionForKey.TryEnter
+    private static final int REJECTED = 0;
+    private static final int ENTERED = 1;
+    private static final int EVICTED = 2;
+
     private class ThrottledRegionForKey{
 
+        private final int key;
+
         private final AtomicInteger insideCount = new AtomicInteger(0);
 
         // changed inside the lock but observed outside of it
@@ -37,7 +46,16 @@ public class ThrottledRegion2 {
         private final Lock lock = new ReentrantLock();
 
         // changed and observed inside the lock
-        private final LinkedList<Request> q = new LinkedList<>();
+        private final DListNode q = DListNode.newList();
+
+        // insideCount value of a region removed from the map, above any maxInside so that TryAcquire always fails
+        private static final int RETIRED = Integer.MAX_VALUE;
+        // set on every TryEnter and cleared by each eviction sweep
+        private volatile boolean touched = true;
+
+        public ThrottledRegionForKey(int key){
+            this.key = key;
+        }
 
         private boolean TryAcquire(){
             do{
@@ -51,16 +69,38 @@ public class ThrottledRegion2 {
             }while(true);
         }
 
-        public boolean TryEnter() throws InterruptedException {
+        public int TryEnter() throws InterruptedException {
+            if(!touched){
+                // only written when needed, to avoid invalidating the line on every entry
+                touched = true;
+            }
             if(waitingCount == 0 && TryAcquire()){
-                return true;
+                return ENTERED;
             }
+            // a leave may be close, so retry for a while before taking the lock
+            int spins = spin.spins();
+            // once someone is waiting, it must not be overtaken
+            for(int i = 0 ; i<spins && waitingCount == 0 ; ++i){
+                SpinPolicy.onSpinWait();
+                if(Thread.currentThread().isInterrupted()){
+                    break;
+                }
+                if(TryAcquire()){
+                    spin.succeeded(i);
+                    return ENTERED;
+                }
+            }
+            spin.failed();
             // slow path
             lock.lock();
             try{
+                // retired regions are never used again, the caller must get a new one from the map
+                if(insideCount.get() == RETIRED){
+                    return EVICTED;
+                }
                 // if full, quit immediately
                 if(waitingCount == maxWaiting){
-                    return false;
+                    return REJECTED;
                 }
 
                 // mark as waiting
@@ -70,12 +110,12 @@ public class ThrottledRegion2 {
                 // If first in waiting line, check again if region is not full
                 if(waitingCount == 1 && TryAcquire()) {
                     waitingCount -= 1;
-                    return true;
+                    return ENTERED;
                 }
 
                 // let's wait ...
                 Request r = new Request(lock.newCondition());
-                q.addLast(r);
+                DListNode.addLast(q, r);
                 long timeout = waitTimeout;
                 do{
                     try{
@@ -83,19 +123,19 @@ public class ThrottledRegion2 {
                     }catch(InterruptedException e){
                         if(r.done){
                             Thread.currentThread().interrupt();
-                            return true;
+                            return ENTERED;
                         }
                         waitingCount -= 1;
-                        q.remove(r);
+                        DListNode.remove(r);
                         throw e;
                     }
                     if(r.done){
-                        return true;
+                        return ENTERED;
                     }
                     if(timeout <= 0){
                         waitingCount -= 1;
-                        q.remove(r);
-                        return false;
+                        DListNode.remove(r);
+                        return REJECTED;
                     }
                 }while(true);
             }finally{
@@ -114,7 +154,7 @@ public class ThrottledRegion2 {
             }
             lock.lock();
             try{
-                Request first = q.peekFirst();
+                Request first = DListNode.firstEntry(q);
                 if(first == null) {
                     insideCount.decrementAndGet();
                     return;
@@ -124,27 +164,120 @@ public class ThrottledRegion2 {
                 }
                 first.done = true;
                 waitingCount -= 1;
-                q.remove(first);
+                DListNode.remove(first);
                 first.condition.signal();
             }finally{
                 lock.unlock();
             }
         }
+
+        // only succeeds if no one is inside or waiting and the region was not used since the last sweep
+        // after this, a TryEnter on this region returns EVICTED and is retried on a new one
+        public boolean tryRetire(){
+            if(touched){
+                touched = false;
+                return false;
+            }
+            // waitingCount is only changed inside the lock, a busy lock means someone is on the slow path
+            if(!lock.tryLock()){
+                return false;
+            }
+            try{
+                return waitingCount == 0 && insideCount.compareAndSet(0, RETIRED);
+            }finally{
+                lock.unlock();
+            }
+        }
     }
 
-    private final ConcurrentMap<Integer, ThrottledRegionForKey> map =
-            new ConcurrentHashMap<>();
+    // int keys, so the lookups don't box the key
+    private final IntConcurrentMap<ThrottledRegionForKey> map = new IntConcurrentMap<>();
+    // created once, since a lambda capturing this would be allocated on each call
+    private final IntFunction<ThrottledRegionForKey> newRegion = ThrottledRegionForKey::new;
+
+    // idle time after which a region may be evicted, 0 if only evicted by evictIdle
+    private final long idleTtl;
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    // used by TryEnter, shared by all the keys
+    private final SpinPolicy spin;
 
     public ThrottledRegion2 (int maxInside, int maxWaiting, int waitTimeout){
+        this(maxInside, maxWaiting, waitTimeout, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param idleTtl regions not used during this time are removed from the map,
+     *                the sweep is done when new keys are added
+     */
+    public ThrottledRegion2 (int maxInside, int maxWaiting, int waitTimeout, long idleTtl, TimeUnit unit){
+        this(maxInside, maxWaiting, waitTimeout, idleTtl, unit, SpinPolicy.DISABLED);
+    }
+
+    /**
+     * @param spin how long TryEnter spins before blocking, SpinPolicy.DISABLED (the default) to never spin
+     */
+    public ThrottledRegion2 (int maxInside, int maxWaiting, int waitTimeout, long idleTtl, TimeUnit unit, SpinPolicy spin){
+        this.spin = spin;
         this.maxInside = maxInside;
         this.maxWaiting = maxWaiting;
         this.waitTimeout = waitTimeout;
+        this.idleTtl = unit.toNanos(idleTtl);
     }
+
     public boolean TryEnter(int key) throws InterruptedException {
-        return map.computeIfAbsent(key, k -> new ThrottledRegionForKey()).TryEnter();
+        do{
+            ThrottledRegionForKey region = map.get(key);
+            if(region == null){
+                region = map.computeIfAbsent(key, newRegion);
+                maybeEvictIdle();
+            }
+            int res = region.TryEnter();
+            if(res != EVICTED){
+                return res == ENTERED;
+            }
+            // the sweeper may not have removed it yet
+            map.remove(key, region);
+        }while(true);
     }
+
     public void Leave(int key){
+        // a region with someone inside is never evicted
         map.get(key).Leave();
     }
 
+    private void maybeEvictIdle(){
+        if(idleTtl <= 0){
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        // only one thread sweeps on each period
+        if(now - last >= idleTtl && lastSweep.compareAndSet(last, now)){
+            evictIdle();
+        }
+    }
+
+    /**
+     * Removes the regions not used since the previous call, returning how many were removed.
+     * A region is removed after being idle for one to two periods between calls.
+     */
+    public int evictIdle(){
+        int evicted = 0;
+        for(ThrottledRegionForKey region : map){
+            if(region.tryRetire()){
+                map.remove(region.key, region);
+                evicted += 1;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Number of keys currently in the map.
+     */
+    public int keyCount(){
+        return map.size();
+    }
+
 }
@@ -1,37 +1,95 @@
 package pt.isel.pc;
 
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Function;
-import java.util.function.Predicate;
+import java.util.function.IntFunction;
 
 /**
  * Created by pedro on 19/11/16.
+ * - idle regions are evicted from the map by retiring them with a CAS from 0 (no one inside or waiting),
+ *   a TryEnter that gets a retired region removes it and retries with a new one
+ * - TryEnterAsync waits on a future instead of a condition, both kinds of requests share the same FIFO queue
+ * - entries can have a weight, maxInside is then the total weight inside and Leave grants
+ *   as many waiters as the released weight allows
+ * - an optional global limit across all the keys, enforced by an AsyncSemaphore after entering the key,
+ *   which has the same lock-free fast path and FIFO grants across the keys
+ * - a request waiting on the global limit keeps its key slot, so those waiters are also bounded by maxWaiting
+ * - with metrics, the wait on the key and the wait on the global limit are recorded as two waits
+ * - cancelling a TryEnterAsync future cancels the wait in progress, on the key or on the global limit,
+ *   and the weight granted after the cancel is given back
  */
 public class ThrottledRegion3 {
 
     private final int maxInside;
     private final int maxWaiting;
     private final int waitTimeout;
+    // used by the TryEnterAsync timeouts
+    private final TimerWheel timer = TimerWheel.shared();
+    // null if disabled, so the fast path only pays a null check
+    private final SynchronizerMetrics metrics;
+    // used by the blocking TryEnter, shared by all the keys
+    private final SpinPolicy spin;
 
-    private static class Request
+
+    private class Request extends DListNode
     {
+        // only one of condition and future is used, depending on TryEnter or TryEnterAsync
         public final Condition condition;
+        public final CompletableFuture<Boolean> future;
+        public final int weight;
+        public TimerWheel.Timeout timeout;
+        // only set when there are metrics
+        public long startNanos;
         public boolean done;
-        public Request(Condition condition){
+        // links the async requests granted together, to complete them outside the lock
+        public Request nextGranted;
+        public Request(Condition condition, int weight){
             this.condition = condition;
+            this.future = null;
+            this.weight = weight;
+            done = false;
+        }
+        public Request(ThrottledRegionForKey region, int weight){
+            this.condition = null;
+            this.future = new RequestFuture(region, this);
+            this.weight = weight;
             done = false;
         }
     }
 
+    // cancelling a waiting request removes it from the queue, as AsyncSemaphore does,
+    // so it stops counting against maxWaiting
+    private class RequestFuture extends CompletableFuture<Boolean> {
+        private final ThrottledRegionForKey region;
+        private final Request request;
+
+        public RequestFuture(ThrottledRegionForKey region, Request request){
+            this.region = region;
+            this.request = request;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning){
+            return region.cancel(request) && super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    // results of ThrottledRegionForKey.TryEnter
+    private static final int REJECTED = 0;
+    private static final int ENTERED = 1;
+    private static final int EVICTED = 2;
+
     private class ThrottledRegionForKey{
 
-        // used to store a waitingCounter flag on bit_31 and a counter on the remaining bits
+        private final int key;
+
+        // used to store a waitingCounter flag on bit_31 and the total weight inside on the remaining bits
         // the waitingCounter flag is observed outside the lock however it is only changed inside the lock
         // by having both the flag and the counter on the same integer we have atomic updates of both
         private final AtomicInteger count = new AtomicInteger(0);
@@ -41,149 +99,724 @@ public class ThrottledRegion3 {
         private final Lock lock = new ReentrantLock();
         // changed and observed inside the lock
         private int waitingCounter = 0;
-        private final LinkedList<Request> q = new LinkedList<>();
+        private final DListNode q = DListNode.newList();
+        // count value of a region removed from the map,
+        // the waiting bit is set so that the fast paths always fail
+        private static final int RETIRED = -1;
+        // set on every TryEnter and cleared by each eviction sweep
+        private volatile boolean touched = true;
+
+        // the count updates are specialised int CAS loops, so the fast path neither boxes the counter nor allocates
 
-        private boolean conditionalUpdate(AtomicInteger i, Predicate<Integer> pred, Function<Integer, Integer> next){
+        // if not waiting and the weight fits in maxInside, just add it
+        private boolean tryIncrement(int weight){
             do{
-                int observed = i.get();
-                if(!pred.test(observed)){
+                int observed = count.get();
+                if(waiting(observed) || observed > maxInside - weight){
                     return false;
                 }
-                int newValue = next.apply(observed);
-                if(i.compareAndSet(observed, newValue)){
+                if(count.compareAndSet(observed, observed + weight)){
                     return true;
                 }
             }while(true);
         }
 
-        private int update(AtomicInteger i, Function<Integer, Integer> next){
+        // adds the weight if not waiting and it fits in maxInside, otherwise sets the waiting bit
+        // returns the new value
+        private int incrementOrSetWaiting(int weight){
             do{
-                int observed = i.get();
-                int newValue = next.apply(observed);
-                if(i.compareAndSet(observed, newValue)){
+                int observed = count.get();
+                int newValue = !waiting(observed) && observed <= maxInside - weight
+                        ? observed + weight
+                        : observed | MASK;
+                if(count.compareAndSet(observed, newValue)){
                     return newValue;
                 }
             }while(true);
         }
 
+        // if no one is waiting, just subtract the weight
+        private boolean tryDecrement(int weight){
+            do{
+                int observed = count.get();
+                if(waiting(observed)){
+                    return false;
+                }
+                if(count.compareAndSet(observed, observed - weight)){
+                    return true;
+                }
+            }while(true);
+        }
+
+        public ThrottledRegionForKey(int key){
+            this.key = key;
+        }
+
         private boolean waiting(int counter){
             return counter < 0;
         }
 
-        public boolean TryEnter() throws InterruptedException {
-            if(conditionalUpdate(count,
-                    // if not waiting and below maxInside...
-                    observed -> !waiting(observed) && observed < maxInside,
-                    // ... just increment it
-                    observed -> observed+1)){
-                return true;
+        public int TryEnter(int weight) throws InterruptedException {
+            if(!touched){
+                // only written when needed, to avoid invalidating the line on every entry
+                touched = true;
             }
+            if(tryIncrement(weight)){
+                if(metrics != null){
+                    metrics.onFastPath();
+                }
+                return ENTERED;
+            }
+            // a leave may be close, so retry for a while before taking the lock
+            int spins = spin.spins();
+            for(int i = 0 ; i<spins ; ++i){
+                SpinPolicy.onSpinWait();
+                // once someone is waiting, the entries are handed over in FIFO order
+                if(waiting(count.get()) || Thread.currentThread().isInterrupted()){
+                    break;
+                }
+                if(tryIncrement(weight)){
+                    spin.succeeded(i);
+                    if(metrics != null){
+                        metrics.onFastPath();
+                    }
+                    return ENTERED;
+                }
+            }
+            spin.failed();
 
             // slow path
+            // async requests granted by a giveUp, completed after leaving the lock
+            Request granted = null;
             lock.lock();
             try{
+                // retired regions are never used again, the caller must get a new one from the map
+                if(count.get() == RETIRED){
+                    return EVICTED;
+                }
+                if(metrics != null){
+                    metrics.onSlowPath();
+                }
                 if(waitingCounter == maxWaiting){
-                    return false;
+                    if(metrics != null){
+                        metrics.onRejected();
+                    }
+                    return REJECTED;
                 }
                 // because the counter could be decremented in the meanwhile
-                int res = update(count,
-                        // if not waiting and below maxInside...
-                        observed -> !waiting(observed) && observed < maxInside
-                            // ... just increment it
-                            ? observed + 1
-                            // ... otherwise set waitingCounter
-                            : observed | MASK
-                        );
+                int res = incrementOrSetWaiting(weight);
                 if(!waiting(res)){
-                    return true;
+                    return ENTERED;
                 }
                 // if we reached here, then the waiting bit is set,
                 // meaning that a leaver will always try to signal a waitingCounter thread
                 waitingCounter += 1;
-                Request r = new Request(lock.newCondition());
-                q.addLast(r);
+                Request r = new Request(lock.newCondition(), weight);
+                DListNode.addLast(q, r);
+                if(metrics != null){
+                    r.startNanos = System.nanoTime();
+                }
                 long timeout = waitTimeout;
                 do{
                     try{
                         timeout = r.condition.awaitNanos(timeout);
                     }catch(InterruptedException e){
                         if(r.done){
+                            if(metrics != null){
+                                metrics.onGranted(System.nanoTime() - r.startNanos);
+                            }
                             Thread.currentThread().interrupt();
-                            return true;
+                            return ENTERED;
+                        }
+                        if(metrics != null){
+                            metrics.onInterrupted(System.nanoTime() - r.startNanos);
                         }
-                        giveUp(r);
+                        granted = giveUp(r);
                         throw e;
                     }
                     if(r.done){
-                        return true;
+                        if(metrics != null){
+                            metrics.onGranted(System.nanoTime() - r.startNanos);
+                        }
+                        return ENTERED;
                     }
                     if(timeout <= 0){
-                        giveUp(r);
-                        return false;
+                        if(metrics != null){
+                            metrics.onTimeout(System.nanoTime() - r.startNanos);
+                        }
+                        granted = giveUp(r);
+                        return REJECTED;
                     }
                 }while(true);
             }finally{
                 lock.unlock();
+                complete(granted);
             }
         }
 
-        private void giveUp(Request r){
-            waitingCounter -= 1;
-            q.remove(r);
-            if(q.peekFirst() == null){
-                // no one is waiting, update the bit
-                // no concurrency on this update since we are inside the lock
-                update(count, observed -> observed & ~MASK);
+        // returns null if the region was retired
+        public CompletableFuture<Boolean> TryEnterAsync(int weight){
+            if(!touched){
+                touched = true;
+            }
+            if(tryIncrement(weight)){
+                if(metrics != null){
+                    metrics.onFastPath();
+                }
+                return CompletableFuture.completedFuture(true);
+            }
+
+            // slow path
+            lock.lock();
+            try{
+                if(count.get() == RETIRED){
+                    return null;
+                }
+                if(metrics != null){
+                    metrics.onSlowPath();
+                }
+                if(waitingCounter == maxWaiting){
+                    if(metrics != null){
+                        metrics.onRejected();
+                    }
+                    return CompletableFuture.completedFuture(false);
+                }
+                int res = incrementOrSetWaiting(weight);
+                if(!waiting(res)){
+                    return CompletableFuture.completedFuture(true);
+                }
+                // same as TryEnter, but the request is completed by Leave or by the timer instead of signalled
+                waitingCounter += 1;
+                Request r = new Request(this, weight);
+                DListNode.addLast(q, r);
+                if(metrics != null){
+                    r.startNanos = System.nanoTime();
+                }
+                r.timeout = timer.schedule(() -> timeout(r), waitTimeout, TimeUnit.NANOSECONDS);
+                return r.future;
+            }finally{
+                lock.unlock();
             }
         }
 
-        public void Leave(){
-            if(conditionalUpdate(count,
-                    // if no one is waiting...
-                    observed -> !waiting(observed),
-                    // ... just decrement the counter
-                    observed -> observed - 1)){
-                return;
+        // called by the timer thread
+        private void timeout(Request r){
+            Request granted;
+            lock.lock();
+            try{
+                if(r.done){
+                    return;
+                }
+                granted = giveUp(r);
+            }finally{
+                lock.unlock();
             }
+            if(metrics != null){
+                metrics.onTimeout(System.nanoTime() - r.startNanos);
+            }
+            r.future.complete(false);
+            complete(granted);
+        }
+
+        // returns false if the request was already granted or gave up
+        private boolean cancel(Request r){
+            Request granted;
             lock.lock();
             try{
-                Request first = q.peekFirst();
-                // recheck if someone is waiting ...
-                if(first == null){
-                    // if not, just decrement the counter
+                if(r.done){
+                    return false;
+                }
+                granted = giveUp(r);
+            }finally{
+                lock.unlock();
+            }
+            r.timeout.cancel();
+            if(metrics != null){
+                metrics.onCancelled(System.nanoTime() - r.startNanos);
+            }
+            complete(granted);
+            return true;
+        }
+
+        // returns the async requests granted because of the removal
+        private Request giveUp(Request r){
+            r.done = true;
+            waitingCounter -= 1;
+            DListNode.remove(r);
+            // the removed request may have been blocking lighter ones behind it
+            return grant();
+        }
+
+        // must be called inside the lock, with the waiting bit set
+        // while the bit is set there are no updates outside the lock
+        // grants, in FIFO order, all the requests that fit in maxInside,
+        // signalling the blocked ones and returning the async ones, to be completed outside the lock
+        private Request grant(){
+            int inside = count.get() & ~MASK;
+            Request first = null;
+            Request last = null;
+            Request r;
+            while((r = DListNode.firstEntry(q)) != null && inside <= maxInside - r.weight){
+                DListNode.remove(r);
+                r.done = true;
+                waitingCounter -= 1;
+                inside += r.weight;
+                if(r.condition != null){
+                    r.condition.signal();
+                }else if(last == null){
+                    first = last = r;
+                }else{
+                    last.nextGranted = r;
+                    last = r;
+                }
+            }
+            // if no one is waiting, clear the bit
+            count.set(DListNode.isListEmpty(q) ? inside : inside | MASK);
+            return first;
+        }
+
+        // must be called outside the lock, since it runs the continuations
+        private void complete(Request granted){
+            int unused = completeGranted(granted);
+            if(unused > 0){
+                Leave(unused);
+            }
+        }
+
+        // returns the weight granted to futures already completed by the caller, which must be given back
+        // (the caller loops, since giving it back may grant more requests, possibly also completed)
+        private int completeGranted(Request granted){
+            int unused = 0;
+            while(granted != null){
+                Request next = granted.nextGranted;
+                granted.nextGranted = null;
+                granted.timeout.cancel();
+                boolean delivered = granted.future.complete(true);
+                if(metrics != null){
+                    long waited = System.nanoTime() - granted.startNanos;
+                    if(delivered){
+                        metrics.onGranted(waited);
+                    }else{
+                        // handed over to a future already completed by the caller
+                        metrics.onCancelled(waited);
+                    }
+                }
+                if(!delivered){
+                    unused += granted.weight;
+                }
+                granted = next;
+            }
+            return unused;
+        }
+
+        public void Leave(int weight){
+            do{
+                if(tryDecrement(weight)){
+                    return;
+                }
+                Request granted;
+                lock.lock();
+                try{
+                    // recheck if someone is waiting, the bit may have been cleared in the meanwhile
                     // since we are inside the lock a waiter
                     // - did not yet entered and so will see the decremented counter
                     // - always add the request to the queue
-                    update(count, observed -> observed-1);
-                    return;
-                }
-                first.done = true;
-                q.remove(first);
-                first.condition.signal();
-                waitingCounter -= 1;
-                if(q.peekFirst() == null){
-                    // no one is waiting
-                    update(count, observed -> observed & ~MASK);
+                    if(!waiting(count.addAndGet(-weight))){
+                        return;
+                    }
+                    granted = grant();
+                }finally{
+                    lock.unlock();
                 }
+                // a loop instead of a recursive Leave, since there may be a long run of abandoned futures
+                weight = completeGranted(granted);
+            }while(weight > 0);
+        }
+
+        // only succeeds if no one is inside or waiting and the region was not used since the last sweep
+        // after this, a TryEnter on this region returns EVICTED and is retried on a new one
+        public boolean tryRetire(){
+            if(touched){
+                touched = false;
+                return false;
+            }
+            // a busy lock means someone is on the slow path
+            if(!lock.tryLock()){
+                return false;
+            }
+            try{
+                // zero means no one inside and the waiting bit cleared, i.e. an empty queue
+                return count.compareAndSet(0, RETIRED);
             }finally{
                 lock.unlock();
             }
         }
     }
 
-    private final ConcurrentMap<Integer, ThrottledRegionForKey> map =
-            new ConcurrentHashMap<>();
+    // int keys, so the lookups don't box the key
+    private final IntConcurrentMap<ThrottledRegionForKey> map = new IntConcurrentMap<>();
+    // created once, since a lambda capturing this would be allocated on each call
+    private final IntFunction<ThrottledRegionForKey> newRegion = ThrottledRegionForKey::new;
+
+    // idle time after which a region may be evicted, 0 if only evicted by evictIdle
+    private final long idleTtl;
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    // total weight inside across all the keys, null if there is no global limit
+    // FIFO across all the keys, so a Leave on one key can grant the oldest waiter of any key
+    private final AsyncSemaphore global;
+    private final int globalMaxInside;
+    // requests waiting on the global limit, across all the keys
+    private final AtomicInteger globalWaiting = new AtomicInteger();
+
+    // the future of a TryEnterAsync with a global limit, that waits first on the key and then on the global limit
+    private class GlobalEntry extends CompletableFuture<Boolean> {
+        private final int key;
+        private final int weight;
+        private final long start;
+        // the wait in progress, cancelled along with this future
+        private volatile CompletableFuture<Boolean> stage;
+
+        public GlobalEntry(int key, int weight, long start){
+            this.key = key;
+            this.weight = weight;
+            this.start = start;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning){
+            if(!super.cancel(mayInterruptIfRunning)){
+                return false;
+            }
+            // a stage set after this is cancelled by whoever set it
+            CompletableFuture<Boolean> s = stage;
+            if(s != null){
+                s.cancel(false);
+            }
+            return true;
+        }
+
+        private void waitOn(CompletableFuture<Boolean> s){
+            stage = s;
+            if(isDone()){
+                s.cancel(false);
+            }
+        }
+
+        public void waitKey(CompletableFuture<Boolean> f){
+            waitOn(f);
+            f.whenComplete((entered, e) -> {
+                if(e != null || !entered){
+                    complete(false);
+                }else{
+                    waitGlobal();
+                }
+            });
+        }
+
+        private void waitGlobal(){
+            // cancelled while the key was being granted
+            if(isDone()){
+                leaveKey(key, weight);
+                return;
+            }
+            if(global.tryAcquire(weight)){
+                if(!complete(true)){
+                    Leave(key, weight);
+                }
+                return;
+            }
+            if(!tryWaitGlobal()){
+                leaveKey(key, weight);
+                complete(false);
+                return;
+            }
+            long globalStart = System.nanoTime();
+            CompletableFuture<Boolean> f = global.acquireAsync(weight, waitTimeout - (globalStart - start), TimeUnit.NANOSECONDS);
+            waitOn(f);
+            f.whenComplete((entered, e) -> {
+                globalWaiting.decrementAndGet();
+                long waited = System.nanoTime() - globalStart;
+                if(e != null || !entered){
+                    if(metrics != null){
+                        if(e != null){
+                            metrics.onCancelled(waited);
+                        }else{
+                            metrics.onTimeout(waited);
+                        }
+                    }
+                    leaveKey(key, weight);
+                    complete(false);
+                }else if(complete(true)){
+                    if(metrics != null){
+                        metrics.onGranted(waited);
+                    }
+                }else{
+                    // cancelled after the grant
+                    if(metrics != null){
+                        metrics.onCancelled(waited);
+                    }
+                    Leave(key, weight);
+                }
+            });
+        }
+    }
 
     public ThrottledRegion3(int maxInside, int maxWaiting, int waitTimeout){
+        this(maxInside, maxWaiting, waitTimeout, 0, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param idleTtl regions not used during this time are removed from the map,
+     *                the sweep is done when new keys are added
+     */
+    public ThrottledRegion3(int maxInside, int maxWaiting, int waitTimeout, long idleTtl, TimeUnit unit){
+        this(maxInside, maxWaiting, waitTimeout, 0, idleTtl, unit);
+    }
+
+    /**
+     * @param globalMaxInside total weight allowed inside across all the keys, 0 for no global limit
+     */
+    public ThrottledRegion3(int maxInside, int maxWaiting, int waitTimeout, int globalMaxInside){
+        this(maxInside, maxWaiting, waitTimeout, globalMaxInside, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public ThrottledRegion3(int maxInside, int maxWaiting, int waitTimeout, int globalMaxInside, long idleTtl, TimeUnit unit){
+        this(maxInside, maxWaiting, waitTimeout, globalMaxInside, idleTtl, unit, null);
+    }
+
+    /**
+     * @param metrics shared by all the keys, null to disable them
+     */
+    public ThrottledRegion3(int maxInside, int maxWaiting, int waitTimeout, int globalMaxInside, long idleTtl, TimeUnit unit,
+                            SynchronizerMetrics metrics){
+        this(maxInside, maxWaiting, waitTimeout, globalMaxInside, idleTtl, unit, metrics, SpinPolicy.DISABLED);
+    }
+
+    /**
+     * @param spin how long TryEnter spins before blocking, SpinPolicy.DISABLED (the default) to never spin
+     */
+    public ThrottledRegion3(int maxInside, int maxWaiting, int waitTimeout, int globalMaxInside, long idleTtl, TimeUnit unit,
+                            SynchronizerMetrics metrics, SpinPolicy spin){
+        this.metrics = metrics;
+        this.spin = spin;
         this.maxInside = maxInside;
         this.maxWaiting = maxWaiting;
         this.waitTimeout = waitTimeout;
+        this.idleTtl = unit.toNanos(idleTtl);
+        this.globalMaxInside = globalMaxInside;
+        this.global = globalMaxInside > 0 ? new AsyncSemaphore(globalMaxInside, timer) : null;
     }
+
     public boolean TryEnter(int key) throws InterruptedException {
-        return map.computeIfAbsent(key, k -> new ThrottledRegionForKey()).TryEnter();
+        return TryEnter(key, 1);
+    }
+
+    /**
+     * Enters the region with a weight, maxInside being the total weight allowed inside.
+     * Waiting requests are granted in FIFO order, so a heavy request is not overtaken by lighter ones.
+     */
+    public boolean TryEnter(int key, int weight) throws InterruptedException {
+        checkWeight(weight);
+        if(global == null){
+            return enterKey(key, weight);
+        }
+        long start = System.nanoTime();
+        // the key first, so that a request waiting on its key doesn't hold global weight
+        if(!enterKey(key, weight)){
+            return false;
+        }
+        // let's be optimistic, this is a single CAS while no one is waiting on the global limit
+        if(global.tryAcquire(weight)){
+            return true;
+        }
+        if(!tryWaitGlobal()){
+            leaveKey(key, weight);
+            return false;
+        }
+        // slow path, wait for the global weight during what is left of the timeout
+        long globalStart = System.nanoTime();
+        boolean entered;
+        try{
+            CompletableFuture<Boolean> f = global.acquireAsync(weight, waitTimeout - (globalStart - start), TimeUnit.NANOSECONDS);
+            try{
+                entered = f.get();
+            }catch(InterruptedException e){
+                if(f.cancel(false)){
+                    if(metrics != null){
+                        metrics.onInterrupted(System.nanoTime() - globalStart);
+                    }
+                    leaveKey(key, weight);
+                    throw e;
+                }
+                // granted in the meanwhile
+                if(metrics != null){
+                    metrics.onGranted(System.nanoTime() - globalStart);
+                }
+                Thread.currentThread().interrupt();
+                return true;
+            }catch(ExecutionException e){
+                // never completed exceptionally
+                throw new IllegalStateException(e.getCause());
+            }
+        }finally{
+            globalWaiting.decrementAndGet();
+        }
+        if(metrics != null){
+            if(entered){
+                metrics.onGranted(System.nanoTime() - globalStart);
+            }else{
+                metrics.onTimeout(System.nanoTime() - globalStart);
+            }
+        }
+        if(!entered){
+            leaveKey(key, weight);
+        }
+        return entered;
+    }
+
+    // the waiters on the global limit hold their key slot, so they are bounded by maxWaiting as well
+    private boolean tryWaitGlobal(){
+        do{
+            int observed = globalWaiting.get();
+            if(observed >= maxWaiting){
+                if(metrics != null){
+                    metrics.onRejected();
+                }
+                return false;
+            }
+            if(globalWaiting.compareAndSet(observed, observed + 1)){
+                return true;
+            }
+        }while(true);
+    }
+
+    private boolean enterKey(int key, int weight) throws InterruptedException {
+        do{
+            ThrottledRegionForKey region = region(key);
+            int res = region.TryEnter(weight);
+            if(res != EVICTED){
+                return res == ENTERED;
+            }
+            // the sweeper may not have removed it yet
+            map.remove(key, region);
+        }while(true);
+    }
+
+    /**
+     * The returned future completes with true when the region is entered
+     * or with false if it is full or the timeout expires first.
+     * The timeouts are handled by the shared TimerWheel, so no thread is blocked while waiting.
+     */
+    public CompletableFuture<Boolean> TryEnterAsync(int key){
+        return TryEnterAsync(key, 1);
+    }
+
+    public CompletableFuture<Boolean> TryEnterAsync(int key, int weight){
+        checkWeight(weight);
+        if(global == null){
+            return enterKeyAsync(key, weight);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> f = enterKeyAsync(key, weight);
+        // rejected, or both entered without waiting
+        if(f.isDone() && (!f.join() || global.tryAcquire(weight))){
+            return f;
+        }
+        GlobalEntry entry = new GlobalEntry(key, weight, start);
+        entry.waitKey(f);
+        return entry;
+    }
+
+    private CompletableFuture<Boolean> enterKeyAsync(int key, int weight){
+        do{
+            ThrottledRegionForKey region = region(key);
+            CompletableFuture<Boolean> res = region.TryEnterAsync(weight);
+            if(res != null){
+                return res;
+            }
+            map.remove(key, region);
+        }while(true);
     }
+
+    private ThrottledRegionForKey region(int key){
+        ThrottledRegionForKey region = map.get(key);
+        if(region == null){
+            region = map.computeIfAbsent(key, newRegion);
+            maybeEvictIdle();
+        }
+        return region;
+    }
+
     public void Leave(int key){
-        map.get(key).Leave();
+        Leave(key, 1);
+    }
+
+    /**
+     * The weight must be the one used to enter.
+     */
+    public void Leave(int key, int weight){
+        checkWeight(weight);
+        leaveKey(key, weight);
+        if(global != null){
+            global.release(weight);
+        }
+    }
+
+    private void leaveKey(int key, int weight){
+        // a region with someone inside is never evicted
+        map.get(key).Leave(weight);
+    }
+
+    private void checkWeight(int weight){
+        // a weight above maxInside would never be granted, blocking everyone behind it
+        if(weight <= 0 || weight > maxInside){
+            throw new IllegalArgumentException("weight must be between 1 and maxInside");
+        }
+        if(global != null && weight > globalMaxInside){
+            throw new IllegalArgumentException("weight must not exceed globalMaxInside");
+        }
+    }
+
+    private void maybeEvictIdle(){
+        if(idleTtl <= 0){
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        // only one thread sweeps on each period
+        if(now - last >= idleTtl && lastSweep.compareAndSet(last, now)){
+            evictIdle();
+        }
+    }
+
+    /**
+     * Removes the regions not used since the previous call, returning how many were removed.
+     * A region is removed after being idle for one to two periods between calls.
+     */
+    public int evictIdle(){
+        int evicted = 0;
+        for(ThrottledRegionForKey region : map){
+            if(region.tryRetire()){
+                map.remove(region.key, region);
+                evicted += 1;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Null if created without metrics.
+     */
+    public SynchronizerMetrics metrics(){
+        return metrics;
+    }
+
+    /**
+     * Number of keys currently in the map.
+     */
+    public int keyCount(){
+        return map.size();
     }
 
 }
@@ -0,0 +1,196 @@
+package pt.isel.pc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel, for many short timeouts that are usually cancelled before expiring
+ * - a single worker thread advances the wheel one tick at a time and runs the expired tasks,
+ *   so the tasks must be short and must not block
+ * - each bucket is a list of timeouts owned by the worker, a timeout more than one lap away
+ *   stays on its bucket for the remaining rounds
+ * - schedule and cancel never take a lock, they hand the timeouts to the worker through LockFreeQueues
+ * - the resolution is one tick, a timeout never expires before its delay
+ */
+public class TimerWheel {
+
+    public static final class Timeout extends DListNode {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private volatile int state = PENDING;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        // nanos since the wheel start
+        private final long deadline;
+        // laps left before expiring, only used by the worker
+        private long rounds;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadline){
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Returns false if the task already ran or is running.
+         */
+        public boolean cancel(){
+            if(!STATE.compareAndSet(this, PENDING, CANCELLED)){
+                return false;
+            }
+            // the worker removes it from its bucket, so it doesn't hold the task until the deadline
+            wheel.cancelled.enqueue(this);
+            return true;
+        }
+
+        public boolean isExpired(){
+            return state == EXPIRED;
+        }
+
+        public boolean isCancelled(){
+            return state == CANCELLED;
+        }
+    }
+
+    private static final TimerWheel shared = new TimerWheel(1, TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * Wheel with a 1ms tick, shared by all the synchronizers that don't provide their own.
+     */
+    public static TimerWheel shared(){
+        return shared;
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final DListNode[] buckets;
+    private final long start = System.nanoTime();
+
+    private final LockFreeQueue<Timeout> added = new LockFreeQueue<>();
+    private final LockFreeQueue<Timeout> cancelled = new LockFreeQueue<>();
+    // timeouts scheduled and not yet expired or removed by the worker, so it can park while there are none
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Thread worker;
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tick, TimeUnit unit, int wheelSize){
+        tickNanos = Math.max(1, unit.toNanos(tick));
+        int n = 1;
+        while(n < wheelSize){
+            n <<= 1;
+        }
+        mask = n - 1;
+        buckets = new DListNode[n];
+        for(int i = 0 ; i<n ; ++i){
+            buckets[i] = DListNode.newList();
+        }
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit){
+        Timeout t = new Timeout(this, task, System.nanoTime() - start + Math.max(0, unit.toNanos(delay)));
+        pending.incrementAndGet();
+        added.enqueue(t);
+        if(!started.get() && started.compareAndSet(false, true)){
+            Thread th = new Thread(this::run, "timer-wheel");
+            th.setDaemon(true);
+            worker = th;
+            th.start();
+        }else{
+            // the worker may be parked with no timeouts
+            Thread th = worker;
+            if(th != null){
+                LockSupport.unpark(th);
+            }
+        }
+        return t;
+    }
+
+    private void run(){
+        // next tick to process, it is processed once its end is reached
+        long tick = 0;
+        do{
+            long now = System.nanoTime() - start;
+            long end = (tick + 1) * tickNanos;
+            if(now < end){
+                if(pending.get() == 0){
+                    // nothing to expire, until a schedule unparks us
+                    LockSupport.park(this);
+                    // skip the ticks elapsed while parked, they have no timeouts
+                    tick = (System.nanoTime() - start) / tickNanos;
+                }else{
+                    LockSupport.parkNanos(this, end - now);
+                }
+                continue;
+            }
+            removeCancelled();
+            addScheduled(tick);
+            expire(buckets[(int) tick & mask]);
+            tick += 1;
+        }while(true);
+    }
+
+    private void removeCancelled(){
+        Timeout t;
+        while((t = cancelled.dequeue()) != null){
+            // if not yet on a bucket, it is discarded by addScheduled
+            if(DListNode.removeIfInserted(t)){
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void addScheduled(long tick){
+        Timeout t;
+        while((t = added.dequeue()) != null){
+            if(t.state != Timeout.PENDING){
+                pending.decrementAndGet();
+                continue;
+            }
+            // last tick whose end is before the deadline, or the current one if already past it
+            long expiryTick = Math.max(tick, (t.deadline + tickNanos - 1) / tickNanos - 1);
+            t.rounds = (expiryTick - tick) / (mask + 1);
+            DListNode.addLast(buckets[(int) expiryTick & mask], t);
+        }
+    }
+
+    private void expire(DListNode bucket){
+        DListNode node = bucket.next;
+        while(node != bucket){
+            Timeout t = (Timeout) node;
+            node = node.next;
+            if(t.state != Timeout.PENDING){
+                // cancelled, but not yet seen by removeCancelled
+                DListNode.remove(t);
+                pending.decrementAndGet();
+                continue;
+            }
+            if(t.rounds > 0){
+                t.rounds -= 1;
+                continue;
+            }
+            DListNode.remove(t);
+            pending.decrementAndGet();
+            if(Timeout.STATE.compareAndSet(t, Timeout.PENDING, Timeout.EXPIRED)){
+                try{
+                    t.task.run();
+                }catch(Throwable e){
+                    // a failing task must not stop the wheel
+                    Thread th = Thread.currentThread();
+                    th.getUncaughtExceptionHandler().uncaughtException(th, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncSemaphoreTests {
+
+    private final long lotsOfTime = TimeUnit.MINUTES.toMillis(1);
+
+    @Test
+    public void acquires_are_completed_in_fifo_order() throws Exception {
+        AsyncSemaphore s = new AsyncSemaphore(1);
+        assertTrue(s.acquireAsync(1, lotsOfTime, TimeUnit.MILLISECONDS).isDone());
+        int[] units = {5, 1, 2};
+        ConcurrentLinkedQueue<Integer> order = new ConcurrentLinkedQueue<>();
+        CompletableFuture<?>[] fs = new CompletableFuture<?>[units.length];
+        for(int i = 0 ; i<units.length ; ++i){
+            final int ix = i;
+            fs[i] = s.acquireAsync(units[i], lotsOfTime, TimeUnit.MILLISECONDS)
+                    .thenAccept(b -> order.add(ix));
+        }
+        // waiters are queued, so the fast path must not overtake them
+        assertFalse(s.tryAcquire(1));
+        s.release(4);
+        assertEquals(0, order.size());
+        s.release(1);
+        assertTrue(fs[0].isDone());
+        s.release(3);
+        CompletableFuture.allOf(fs).get();
+        assertArrayEquals(new Integer[]{0, 1, 2}, order.toArray(new Integer[0]));
+        assertFalse(s.tryAcquire(1));
+    }
+
+    @Test
+    public void timeout_completes_with_false_and_lets_others_proceed() throws Exception {
+        AsyncSemaphore s = new AsyncSemaphore(2);
+        CompletableFuture<Boolean> big = s.acquireAsync(10, 100, TimeUnit.MILLISECONDS);
+        CompletableFuture<Boolean> small = s.acquireAsync(2, lotsOfTime, TimeUnit.MILLISECONDS);
+        assertFalse(small.isDone());
+        assertFalse(big.get());
+        assertTrue(small.get(1, TimeUnit.SECONDS));
+        assertFalse(s.acquireAsync(1, 0, TimeUnit.MILLISECONDS).get());
+    }
+
+    @Test
+    public void cancel_removes_the_waiter() throws Exception {
+        AsyncSemaphore s = new AsyncSemaphore(0);
+        CompletableFuture<Boolean> first = s.acquireAsync(1, lotsOfTime, TimeUnit.MILLISECONDS);
+        CompletableFuture<Boolean> second = s.acquireAsync(1, lotsOfTime, TimeUnit.MILLISECONDS);
+        assertTrue(first.cancel(true));
+        assertTrue(first.isCancelled());
+        s.release(1);
+        assertTrue(second.get());
+        assertFalse(second.cancel(true));
+        s.release(1);
+        assertTrue(s.tryAcquire(1));
+    }
+
+    @Test
+    public void units_are_never_exceeded_under_load() throws InterruptedException {
+        final int nOfThreads = 16;
+        final int nOfReps = 2000;
+        final int initialUnits = 4;
+        final AsyncSemaphore s = new AsyncSemaphore(initialUnits);
+        final AtomicInteger units = new AtomicInteger(initialUnits);
+        final ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[nOfThreads];
+        for(int i = 0 ; i<nOfThreads ; ++i){
+            final int requestUnits = i % initialUnits + 1;
+            ths[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < nOfReps; ++j) {
+                        if(!s.acquireAsync(requestUnits, lotsOfTime, TimeUnit.MILLISECONDS).get()){
+                            fail("timeout");
+                        }
+                        assertTrue(units.addAndGet(-requestUnits) >= 0);
+                        units.addAndGet(requestUnits);
+                        s.release(requestUnits);
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertTrue(s.tryAcquire(initialUnits));
+    }
+
+    @Test
+    public void completed_futures_are_not_shared() throws Exception {
+        AsyncSemaphore s = new AsyncSemaphore(2);
+        CompletableFuture<Boolean> first = s.acquireAsync(1, lotsOfTime, TimeUnit.MILLISECONDS);
+        first.obtrudeValue(false);
+        assertTrue(s.acquireAsync(1, lotsOfTime, TimeUnit.MILLISECONDS).get());
+        CompletableFuture<Boolean> failed = s.acquireAsync(1, 0, TimeUnit.MILLISECONDS);
+        failed.obtrudeValue(true);
+        assertFalse(s.acquireAsync(1, 0, TimeUnit.MILLISECONDS).get());
+    }
+
+    @Test
+    public void rejected_timeout_removes_the_waiter() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.shutdown();
+        AsyncSemaphore s = new AsyncSemaphore(0, scheduler);
+        try{
+            s.acquireAsync(1, lotsOfTime, TimeUnit.MILLISECONDS);
+            fail("waiter queued without a timeout");
+        }catch(RejectedExecutionException e){
+            // expected
+        }
+        // no waiter left behind, so the fast path is open again
+        s.release(1);
+        assertTrue(s.tryAcquire(1));
+    }
+}
@@ -0,0 +1,140 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static org.junit.Assert.*;
+
+public class FileHasherTests {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private static Path newFile(Path dir, int size, Random r) throws IOException {
+        byte[] data = new byte[size];
+        r.nextBytes(data);
+        Path f = Files.createTempFile(dir, "hash", ".bin");
+        Files.write(f, data);
+        return f;
+    }
+
+    private static byte[] expected(Path f) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(f));
+    }
+
+    private static void delete(Path dir, List<Path> files) throws IOException {
+        for(Path f : files){
+            Files.deleteIfExists(f);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void hashes_files_of_any_size() throws Exception {
+        Path dir = Files.createTempDirectory("hasher");
+        List<Path> files = new ArrayList<>();
+        try{
+            Random r = new Random(1);
+            // empty, smaller than a chunk, exactly one chunk and several chunks with a partial last one
+            for(int size : new int[]{0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, 3 * CHUNK_SIZE + 7, 100 * CHUNK_SIZE}){
+                files.add(newFile(dir, size, r));
+            }
+            FileHasher hasher = new FileHasher("SHA-256", CHUNK_SIZE, 2, 4, ForkJoinPool.commonPool());
+            for(Path f : files){
+                assertEquals(FileHasher.toHex(expected(f)), FileHasher.toHex(hasher.hash(f)));
+            }
+        }finally{
+            delete(dir, files);
+        }
+    }
+
+    @Test
+    public void many_files_in_parallel_with_few_buffers_and_threads() throws Exception {
+        final int N_OF_FILES = 32;
+        Path dir = Files.createTempDirectory("hasher");
+        List<Path> files = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try{
+            Random r = new Random(2);
+            for(int i = 0 ; i<N_OF_FILES ; ++i){
+                files.add(newFile(dir, r.nextInt(20 * CHUNK_SIZE), r));
+            }
+            // a single buffer in flight for all the files, and a single thread, still completes
+            FileHasher hasher = new FileHasher("SHA-256", CHUNK_SIZE, 1, 1, pool);
+            Map<Path, byte[]> hashes = hasher.hashAll(files);
+            assertEquals(N_OF_FILES, hashes.size());
+            int i = 0;
+            for(Map.Entry<Path, byte[]> e : hashes.entrySet()){
+                // in the order of the given files
+                assertEquals(files.get(i++), e.getKey());
+                assertEquals(FileHasher.toHex(expected(e.getKey())), FileHasher.toHex(e.getValue()));
+            }
+        }finally{
+            pool.shutdown();
+            delete(dir, files);
+        }
+    }
+
+    @Test
+    public void missing_file_fails_with_io_exception() throws Exception {
+        Path dir = Files.createTempDirectory("hasher");
+        List<Path> files = new ArrayList<>();
+        try{
+            files.add(newFile(dir, 10, new Random(3)));
+            files.add(dir.resolve("missing"));
+            try{
+                new FileHasher("SHA-256").hashAll(files);
+                fail("missing file hashed");
+            }catch(IOException e){
+                // expected
+            }
+            try{
+                new FileHasher("NO-SUCH-HASH");
+                fail("unknown algorithm accepted");
+            }catch(IllegalArgumentException e){
+                // expected
+            }
+        }finally{
+            delete(dir, files);
+        }
+    }
+
+    @Test
+    public void interrupted_task_fails_with_interrupted_exception() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try{
+            ForkJoinTask<Void> task = pool.submit((Callable<Void>) () -> {
+                throw new InterruptedException();
+            });
+            try{
+                task.get();
+                fail("interrupted task completed");
+            }catch(ExecutionException e){
+                try{
+                    FileHasher.unwrap(e);
+                    fail("interrupt not found");
+                }catch(InterruptedException ie){
+                    // expected, whatever the wrapping done by the pool
+                }
+            }
+        }finally{
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void hex_digits() throws Exception {
+        assertEquals("00ff10ab", FileHasher.toHex(new byte[]{0, (byte) 0xff, 0x10, (byte) 0xab}));
+    }
+}
@@ -0,0 +1,90 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IntConcurrentMapTests {
+
+    @Test
+    public void sequential_operations(){
+        IntConcurrentMap<String> map = new IntConcurrentMap<>();
+        assertNull(map.get(1));
+        assertEquals("1", map.computeIfAbsent(1, Integer::toString));
+        assertEquals("1", map.computeIfAbsent(1, k -> "other"));
+        assertEquals("1", map.get(1));
+        assertFalse(map.remove(1, "other"));
+        assertTrue(map.remove(1, map.get(1)));
+        assertNull(map.get(1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void grows_and_reuses_removed_slots(){
+        IntConcurrentMap<Integer> map = new IntConcurrentMap<>();
+        final int N = 10000;
+        for(int round = 0 ; round<3 ; ++round){
+            for(int i = 0 ; i<N ; ++i){
+                map.computeIfAbsent(i * 7 - N, k -> k);
+            }
+            assertEquals(N, map.size());
+            Set<Integer> values = new HashSet<>();
+            for(Integer v : map){
+                values.add(v);
+            }
+            assertEquals(N, values.size());
+            for(int i = 0 ; i<N ; ++i){
+                Integer v = map.get(i * 7 - N);
+                assertEquals(Integer.valueOf(i * 7 - N), v);
+                assertTrue(map.remove(i * 7 - N, v));
+            }
+            assertEquals(0, map.size());
+        }
+    }
+
+    @Test
+    public void concurrent_computeIfAbsent_creates_a_single_value() throws InterruptedException {
+        IntConcurrentMap<Object> map = new IntConcurrentMap<>();
+        final int N_OF_THREADS = 8;
+        final int N_OF_KEYS = 20000;
+        AtomicInteger created = new AtomicInteger();
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Object[][] seen = new Object[N_OF_THREADS][N_OF_KEYS];
+        Thread[] ths = new Thread[N_OF_THREADS];
+        for(int i = 0 ; i<N_OF_THREADS ; ++i){
+            int th = i;
+            ths[i] = new Thread(() -> {
+                try{
+                    for(int k = 0 ; k<N_OF_KEYS ; ++k){
+                        // different orders, so that the threads race on the same keys and on the resizes
+                        int key = th % 2 == 0 ? k : N_OF_KEYS - 1 - k;
+                        seen[th][key] = map.computeIfAbsent(key, x -> {
+                            created.incrementAndGet();
+                            return new Object();
+                        });
+                        if(map.get(key) != seen[th][key]){
+                            eQueue.add(new AssertionError("lost key " + key));
+                        }
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertEquals(N_OF_KEYS, created.get());
+        assertEquals(N_OF_KEYS, map.size());
+        for(int th = 1 ; th<N_OF_THREADS ; ++th){
+            assertArrayEquals(seen[0], seen[th]);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LockFreeCountdownEventTests {
+
+    @Test
+    public void waiters_are_released_only_when_the_count_reaches_zero() throws InterruptedException {
+        final int N_OF_THREADS = 50;
+        final int SIGNALS_PER_THREAD = 1000;
+        LockFreeCountdownEvent ev = new LockFreeCountdownEvent(N_OF_THREADS * SIGNALS_PER_THREAD);
+        CompletableFuture<Void> async = ev.waitAsync();
+        AtomicInteger zeros = new AtomicInteger();
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread waiter = new Thread(() -> {
+            try{
+                ev.await();
+                assertEquals(0, ev.getCurrentCount());
+            }catch(Throwable e){
+                eQueue.add(e);
+            }
+        });
+        waiter.start();
+        Thread[] ths = new Thread[N_OF_THREADS];
+        for(int i = 0 ; i<N_OF_THREADS ; ++i){
+            ths[i] = new Thread(() -> {
+                try{
+                    for(int j = 0 ; j<SIGNALS_PER_THREAD ; ++j){
+                        if(ev.signal()){
+                            zeros.incrementAndGet();
+                        }
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+        }
+        assertFalse(ev.isSet());
+        assertFalse(async.isDone());
+        for(Thread th : ths){
+            th.start();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertEquals(0, eQueue.size());
+        // only one signal brings the count to zero
+        assertEquals(1, zeros.get());
+        assertTrue(ev.isSet());
+        assertTrue(async.isDone());
+    }
+
+    @Test
+    public void count_cant_be_added_after_reaching_zero() throws InterruptedException {
+        LockFreeCountdownEvent ev = new LockFreeCountdownEvent(1);
+        assertTrue(ev.tryAddCount(2));
+        assertFalse(ev.signal(2));
+        assertFalse(ev.await(10, TimeUnit.MILLISECONDS));
+        assertTrue(ev.signal());
+        assertFalse(ev.tryAddCount(1));
+        try{
+            ev.signal();
+            fail("signalled below zero");
+        }catch(IllegalStateException e){
+            // expected
+        }
+        assertTrue(ev.await(0, TimeUnit.MILLISECONDS));
+        assertTrue(new LockFreeCountdownEvent(0).isSet());
+    }
+}
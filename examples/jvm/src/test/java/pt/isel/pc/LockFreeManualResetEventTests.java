@@ -0,0 +1,185 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LockFreeManualResetEventTests {
+
+    @Test
+    public void set_releases_all_the_waiters() throws InterruptedException {
+        final int N_OF_THREADS = 200;
+        LockFreeManualResetEvent event = new LockFreeManualResetEvent();
+        AtomicInteger released = new AtomicInteger();
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        CountDownLatch started = new CountDownLatch(N_OF_THREADS);
+        Thread[] ths = new Thread[N_OF_THREADS];
+        for(int i = 0 ; i<N_OF_THREADS ; ++i){
+            boolean timed = i % 2 == 0;
+            ths[i] = new Thread(() -> {
+                try{
+                    started.countDown();
+                    if(timed){
+                        assertTrue(event.waitForSet(10, TimeUnit.SECONDS));
+                    }else{
+                        event.waitForSet();
+                    }
+                    released.incrementAndGet();
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        CompletableFuture<Void> async = event.waitAsync();
+        started.await();
+        Thread.sleep(50);
+        assertEquals(0, released.get());
+        assertFalse(async.isDone());
+        event.set();
+        for(Thread th : ths){
+            th.join(5000);
+        }
+        assertEquals(N_OF_THREADS, released.get());
+        assertTrue(async.isDone());
+        assertEquals(0, eQueue.size());
+        // once set, no one waits
+        assertTrue(event.waitForSet(0, TimeUnit.SECONDS));
+        assertTrue(event.waitAsync().isDone());
+    }
+
+    @Test
+    public void reset_blocks_again_and_timeouts_are_honored() throws InterruptedException {
+        LockFreeManualResetEvent event = new LockFreeManualResetEvent();
+        event.set();
+        assertTrue(event.isSet());
+        event.reset();
+        assertFalse(event.isSet());
+        long start = System.nanoTime();
+        assertFalse(event.waitForSet(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        // the cancelled waiter doesn't prevent the next ones from being released
+        CompletableFuture<Void> async = event.waitAsync();
+        event.set();
+        assertTrue(async.isDone());
+    }
+
+    @Test
+    public void interrupted_waiter_gives_up() throws InterruptedException {
+        LockFreeManualResetEvent event = new LockFreeManualResetEvent();
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        AtomicInteger interrupted = new AtomicInteger();
+        Thread th = new Thread(() -> {
+            try{
+                event.waitForSet();
+            }catch(InterruptedException e){
+                interrupted.incrementAndGet();
+            }catch(Throwable e){
+                eQueue.add(e);
+            }
+        });
+        th.start();
+        Thread.sleep(50);
+        th.interrupt();
+        th.join(5000);
+        assertEquals(1, interrupted.get());
+        assertEquals(0, eQueue.size());
+        assertFalse(event.isSet());
+    }
+
+    @Test
+    public void set_and_reset_races_never_lose_a_waiter() throws InterruptedException {
+        LockFreeManualResetEvent event = new LockFreeManualResetEvent();
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        long deadline = System.currentTimeMillis() + 1000;
+        Thread[] ths = new Thread[4];
+        for(int i = 0 ; i<ths.length ; ++i){
+            ths[i] = new Thread(() -> {
+                try{
+                    while(System.currentTimeMillis() < deadline){
+                        // the setter keeps setting the event, so a waiter can't block forever
+                        if(!event.waitForSet(5, TimeUnit.SECONDS)){
+                            eQueue.add(new AssertionError("lost wakeup"));
+                        }
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        while(System.currentTimeMillis() < deadline + 100){
+            event.reset();
+            Thread.yield();
+            event.set();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+    }
+
+    @Test
+    public void cancelled_waiters_below_the_top_are_unlinked() throws InterruptedException {
+        final int N = 1000;
+        LockFreeManualResetEvent event = new LockFreeManualResetEvent();
+        List<CompletableFuture<Void>> live = new ArrayList<>();
+        List<WeakReference<CompletableFuture<Void>>> cancelled = new ArrayList<>();
+        for(int i = 0 ; i<N ; ++i){
+            CompletableFuture<Void> f = event.waitAsync();
+            // buries the one to cancel under a live waiter
+            live.add(event.waitAsync());
+            assertTrue(f.cancel(false));
+            cancelled.add(new WeakReference<>(f));
+        }
+        // abandoned by completing it, instead of cancelling it
+        CompletableFuture<Void> abandoned = event.waitAsync();
+        live.add(event.waitAsync());
+        abandoned.complete(null);
+        WeakReference<CompletableFuture<Void>> abandonedRef = new WeakReference<>(abandoned);
+        abandoned = null;
+        // more cancels below the top, to reach the next sweep
+        for(int i = 0 ; i<64 ; ++i){
+            CompletableFuture<Void> f = event.waitAsync();
+            live.add(event.waitAsync());
+            f.cancel(false);
+        }
+        for(int i = 0 ; i<10 && (cancelled.get(0).get() != null || abandonedRef.get() != null) ; ++i){
+            System.gc();
+            Thread.sleep(10);
+        }
+        // only the ones cancelled after the last sweep may still be on the stack
+        int kept = 0;
+        for(WeakReference<CompletableFuture<Void>> ref : cancelled){
+            if(ref.get() != null){
+                kept += 1;
+            }
+        }
+        assertEquals(0, kept);
+        assertNull(abandonedRef.get());
+        event.set();
+        for(CompletableFuture<Void> f : live){
+            assertTrue(f.isDone());
+        }
+    }
+
+    @Test
+    public void completed_futures_are_not_shared(){
+        LockFreeManualResetEvent event = new LockFreeManualResetEvent();
+        event.set();
+        CompletableFuture<Void> first = event.waitAsync();
+        first.obtrudeException(new IllegalStateException());
+        CompletableFuture<Void> second = event.waitAsync();
+        assertFalse(second.isCompletedExceptionally());
+        assertNull(second.join());
+    }
+}
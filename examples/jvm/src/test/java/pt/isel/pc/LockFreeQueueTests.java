@@ -0,0 +1,134 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LockFreeQueueTests {
+
+    @Test
+    public void values_are_dequeued_in_fifo_order(){
+        LockFreeQueue<Integer> q = new LockFreeQueue<>();
+        assertTrue(q.isEmpty());
+        assertNull(q.dequeue());
+        for(int i = 0 ; i<10 ; ++i){
+            q.enqueue(i);
+        }
+        assertEquals(10, q.size());
+        assertEquals(0, (int) q.peek());
+        for(int i = 0 ; i<10 ; ++i){
+            assertEquals(i, (int) q.dequeue());
+        }
+        assertTrue(q.isEmpty());
+        assertNull(q.peek());
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    public void offerAll_and_drainTo_preserve_order(){
+        LockFreeQueue<Integer> q = new LockFreeQueue<>();
+        q.enqueue(0);
+        q.offerAll(Arrays.asList(1, 2, 3, 4));
+        q.offerAll(new ArrayList<>());
+        q.enqueue(5);
+        List<Integer> res = new ArrayList<>();
+        assertEquals(4, q.drainTo(res, 4));
+        assertEquals(2, q.drainTo(res, 100));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), res);
+        assertTrue(q.isEmpty());
+    }
+
+    @Test
+    public void all_values_are_dequeued_exactly_once_under_load() throws InterruptedException {
+        final int nOfProducers = 4;
+        final int nOfConsumers = 4;
+        final int nOfReps = 100000;
+        final LockFreeQueue<Integer> q = new LockFreeQueue<>();
+        final AtomicInteger[] seen = new AtomicInteger[nOfProducers * nOfReps];
+        for(int i = 0 ; i<seen.length ; ++i){
+            seen[i] = new AtomicInteger();
+        }
+        final AtomicInteger dequeued = new AtomicInteger();
+        final ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[nOfProducers + nOfConsumers];
+        for(int i = 0 ; i<nOfProducers ; ++i){
+            final int base = i * nOfReps;
+            ths[i] = new Thread(() -> {
+                for(int j = 0 ; j<nOfReps ; j += 2){
+                    if(j % 10 == 0){
+                        q.offerAll(Arrays.asList(base + j, base + j + 1));
+                    }else {
+                        q.enqueue(base + j);
+                        q.enqueue(base + j + 1);
+                    }
+                }
+            });
+        }
+        for(int i = nOfProducers ; i<ths.length ; ++i){
+            ths[i] = new Thread(() -> {
+                try {
+                    while (dequeued.get() < seen.length) {
+                        Integer v = q.dequeue();
+                        if (v != null) {
+                            assertEquals(1, seen[v].incrementAndGet());
+                            dequeued.incrementAndGet();
+                        }
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                    dequeued.set(seen.length);
+                }
+            });
+        }
+        for(Thread th : ths){
+            th.start();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertTrue(q.isEmpty());
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    public void null_values_are_rejected(){
+        LockFreeQueue<Integer> q = new LockFreeQueue<>();
+        try{
+            q.enqueue(null);
+            fail("null enqueued");
+        }catch(NullPointerException e){
+            // expected
+        }
+        try{
+            q.offerAll(Arrays.asList(1, null, 3));
+            fail("null enqueued");
+        }catch(NullPointerException e){
+            // expected
+        }
+        // nothing was linked by the failed offerAll
+        assertTrue(q.isEmpty());
+    }
+
+    @Test
+    public void dequeued_value_is_not_kept_reachable() throws InterruptedException {
+        LockFreeQueue<Object> q = new LockFreeQueue<>();
+        Object value = new Object();
+        WeakReference<Object> ref = new WeakReference<>(value);
+        q.enqueue(value);
+        assertSame(value, q.dequeue());
+        value = null;
+        for(int i = 0 ; i<10 && ref.get() != null ; ++i){
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+    }
+}
@@ -0,0 +1,136 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class LockFreeRingBufferTests {
+
+    @Test
+    public void offer_fails_when_full_and_poll_is_fifo(){
+        LockFreeRingBuffer<Integer> rb = new LockFreeRingBuffer<>(3);
+        assertEquals(4, rb.capacity());
+        assertNull(rb.poll());
+        for(int i = 0 ; i<4 ; ++i){
+            assertTrue(rb.offer(i));
+        }
+        assertFalse(rb.offer(4));
+        assertEquals(4, rb.size());
+        for(int lap = 0 ; lap<3 ; ++lap){
+            for(int i = 0 ; i<4 ; ++i){
+                assertEquals(i, (int) rb.poll());
+                assertTrue(rb.offer(i));
+            }
+        }
+        for(int i = 0 ; i<4 ; ++i){
+            assertEquals(i, (int) rb.poll());
+        }
+        assertTrue(rb.isEmpty());
+    }
+
+    @Test
+    public void take_waits_for_put() throws InterruptedException {
+        LockFreeRingBuffer<Integer> rb = LockFreeRingBuffer.spsc(1);
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        final int nOfReps = 100000;
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < nOfReps; ++i) {
+                    assertEquals(i, (int) rb.take());
+                }
+            }catch(Throwable e){
+                eQueue.add(e);
+            }
+        });
+        consumer.start();
+        for(int i = 0 ; i<nOfReps ; ++i){
+            rb.put(i);
+        }
+        consumer.join();
+        assertEquals(0, eQueue.size());
+        assertTrue(rb.isEmpty());
+    }
+
+    @Test
+    public void all_values_are_taken_exactly_once_under_load() throws InterruptedException {
+        final int nOfProducers = 4;
+        final int nOfConsumers = 4;
+        final int nOfReps = 50000;
+        final LockFreeRingBuffer<Integer> rb = LockFreeRingBuffer.mpmc(16);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(nOfProducers * nOfReps);
+        final ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[nOfProducers + nOfConsumers];
+        for(int i = 0 ; i<nOfProducers ; ++i){
+            final int base = i * nOfReps;
+            ths[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < nOfReps; ++j) {
+                        rb.put(base + j);
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+        }
+        for(int i = nOfProducers ; i<ths.length ; ++i){
+            ths[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < nOfReps; ++j) {
+                        assertEquals(1, seen.incrementAndGet(rb.take()));
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+        }
+        for(Thread th : ths){
+            th.start();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertTrue(rb.isEmpty());
+    }
+
+    @Test
+    public void mpsc_single_consumer_takes_from_many_producers_in_order() throws InterruptedException {
+        final int nOfProducers = 4;
+        final int nOfReps = 50000;
+        final LockFreeRingBuffer<Integer> rb = LockFreeRingBuffer.mpsc(16);
+        final ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[nOfProducers];
+        for(int i = 0 ; i<nOfProducers ; ++i){
+            final int base = i * nOfReps;
+            ths[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < nOfReps; ++j) {
+                        rb.put(base + j);
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        // each producer's values are taken exactly once and in the order they were put
+        int[] last = new int[nOfProducers];
+        for(int i = 0 ; i<nOfProducers ; ++i){
+            last[i] = i * nOfReps - 1;
+        }
+        for(int j = 0 ; j<nOfProducers * nOfReps ; ++j){
+            int v = rb.take();
+            int p = v / nOfReps;
+            assertEquals(last[p] + 1, v);
+            last[p] = v;
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertTrue(rb.isEmpty());
+    }
+}
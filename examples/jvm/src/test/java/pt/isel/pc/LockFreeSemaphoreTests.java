@@ -0,0 +1,160 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LockFreeSemaphoreTests {
+
+    private void invariant_is_preserved(LockFreeSemaphore s, int initialUnits) throws InterruptedException {
+        final int nOfThreads = 32;
+        final int nOfReps = 20000;
+        final AtomicInteger units = new AtomicInteger(initialUnits);
+        final ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[nOfThreads];
+        for(int i = 0 ; i<nOfThreads ; ++i){
+            ths[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < nOfReps; ++j) {
+                        s.acquire();
+                        assertTrue(units.decrementAndGet() >= 0);
+                        units.incrementAndGet();
+                        s.release();
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertEquals(initialUnits, s.availablePermits());
+    }
+
+    @Test
+    public void invariant_is_preserved_under_load() throws InterruptedException {
+        invariant_is_preserved(new LockFreeSemaphore(3), 3);
+    }
+
+    @Test
+    public void invariant_is_preserved_under_load_with_stripes() throws InterruptedException {
+        invariant_is_preserved(new LockFreeSemaphore(3, 4), 3);
+    }
+
+    @Test
+    public void acquire_steals_permits_from_other_stripes() throws InterruptedException {
+        LockFreeSemaphore s = new LockFreeSemaphore(5, 8);
+        assertEquals(5, s.availablePermits());
+        for(int i = 0 ; i<5 ; ++i){
+            s.acquire();
+        }
+        assertEquals(0, s.availablePermits());
+        Thread th = new Thread(() -> {
+            for(int i = 0 ; i<5 ; ++i){
+                s.release();
+            }
+        });
+        th.start();
+        th.join();
+        for(int i = 0 ; i<5 ; ++i){
+            s.acquire();
+        }
+        assertEquals(0, s.availablePermits());
+    }
+
+    @Test
+    public void multi_unit_acquire_gathers_units_from_all_stripes() throws InterruptedException {
+        LockFreeSemaphore s = new LockFreeSemaphore(8, 4);
+        assertFalse(s.tryAcquire(9));
+        assertEquals(8, s.availablePermits());
+        assertTrue(s.tryAcquire(7));
+        assertEquals(1, s.availablePermits());
+        assertFalse(s.acquire(2, 10, TimeUnit.MILLISECONDS));
+        s.release(7);
+        assertTrue(s.acquire(8, 0, TimeUnit.MILLISECONDS));
+        assertEquals(0, s.availablePermits());
+    }
+
+    @Test
+    public void large_release_wakes_all_satisfiable_waiters() throws InterruptedException {
+        final int[] units = {1, 3, 5, 1, 2};
+        final LockFreeSemaphore s = new LockFreeSemaphore(0, 2);
+        final ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger acquired = new AtomicInteger();
+        Thread[] ths = new Thread[units.length];
+        int total = 0;
+        for(int i = 0 ; i<units.length ; ++i){
+            final int ix = i;
+            total += units[i];
+            ths[i] = new Thread(() -> {
+                try {
+                    assertTrue(s.acquire(units[ix], 10, TimeUnit.SECONDS));
+                    acquired.incrementAndGet();
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        Thread.sleep(100);
+        s.release(total);
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertEquals(units.length, acquired.get());
+        assertEquals(0, s.availablePermits());
+    }
+
+    @Test
+    public void timeout_and_interrupt_give_up() throws InterruptedException {
+        final LockFreeSemaphore s = new LockFreeSemaphore(0);
+        final ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread th = new Thread(() -> {
+            try {
+                s.acquire(1, 1, TimeUnit.MINUTES);
+            }catch(Throwable e){
+                eQueue.add(e);
+            }
+        });
+        th.start();
+        assertFalse(s.acquire(1, 100, TimeUnit.MILLISECONDS));
+        th.interrupt();
+        th.join();
+        assertEquals(1, eQueue.size());
+        assertTrue(eQueue.peek() instanceof InterruptedException);
+    }
+
+    @Test
+    public void non_positive_units_are_rejected() throws InterruptedException {
+        LockFreeSemaphore s = new LockFreeSemaphore(2, 2);
+        for(int units : new int[]{0, -1}){
+            try{
+                s.tryAcquire(units);
+                fail("tryAcquire accepted " + units);
+            }catch(IllegalArgumentException e){
+                // expected
+            }
+            try{
+                s.acquire(units, 1, TimeUnit.SECONDS);
+                fail("acquire accepted " + units);
+            }catch(IllegalArgumentException e){
+                // expected
+            }
+            try{
+                s.release(units);
+                fail("release accepted " + units);
+            }catch(IllegalArgumentException e){
+                // expected
+            }
+        }
+        assertEquals(2, s.availablePermits());
+    }
+}
@@ -0,0 +1,68 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LockFreeStackTests {
+
+    @Test
+    public void values_are_popped_in_lifo_order(){
+        LockFreeStack<Integer> s = new LockFreeStack<>();
+        assertNull(s.pop());
+        for(int i = 0 ; i<10 ; ++i){
+            s.push(i);
+        }
+        for(int i = 9 ; i>=0 ; --i){
+            assertEquals(i, (int) s.pop());
+        }
+        assertNull(s.pop());
+    }
+
+    @Test
+    public void all_values_are_popped_exactly_once_under_load() throws InterruptedException {
+        final int nOfThreads = 8;
+        final int nOfReps = 100000;
+        final LockFreeStack<Integer> s = new LockFreeStack<>(4);
+        final AtomicInteger[] seen = new AtomicInteger[nOfThreads * nOfReps];
+        for(int i = 0 ; i<seen.length ; ++i){
+            seen[i] = new AtomicInteger();
+        }
+        final AtomicInteger popped = new AtomicInteger();
+        final ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[2 * nOfThreads];
+        for(int i = 0 ; i<nOfThreads ; ++i){
+            final int base = i * nOfReps;
+            ths[i] = new Thread(() -> {
+                for(int j = 0 ; j<nOfReps ; ++j){
+                    s.push(base + j);
+                }
+            });
+            ths[nOfThreads + i] = new Thread(() -> {
+                try {
+                    while (popped.get() < seen.length) {
+                        Integer v = s.pop();
+                        if (v != null) {
+                            assertEquals(1, seen[v].incrementAndGet());
+                            popped.incrementAndGet();
+                        }
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                    popped.set(seen.length);
+                }
+            });
+        }
+        for(Thread th : ths){
+            th.start();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertNull(s.pop());
+    }
+}
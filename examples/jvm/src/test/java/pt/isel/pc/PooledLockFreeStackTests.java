@@ -0,0 +1,87 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class PooledLockFreeStackTests {
+
+    @Test
+    public void push_fails_when_all_slots_are_in_use(){
+        PooledLockFreeStack<Integer> s = new PooledLockFreeStack<>(3);
+        assertTrue(s.push(1));
+        assertTrue(s.push(2));
+        assertTrue(s.push(3));
+        assertFalse(s.push(4));
+        assertEquals(3, (int) s.pop());
+        assertTrue(s.push(5));
+        assertEquals(5, (int) s.pop());
+        assertEquals(2, (int) s.pop());
+        assertEquals(1, (int) s.pop());
+        assertNull(s.pop());
+    }
+
+    @Test
+    public void recycled_slots_do_not_lose_or_duplicate_values() throws InterruptedException {
+        final int nOfThreads = 8;
+        final int nOfReps = 200000;
+        final PooledLockFreeStack<Integer> s = new PooledLockFreeStack<>(1024);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(nOfThreads * nOfReps);
+        final ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[nOfThreads];
+        for(int i = 0 ; i<nOfThreads ; ++i){
+            final int base = i * nOfReps;
+            ths[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < nOfReps; ++j) {
+                        assertTrue(s.push(base + j));
+                        Integer v = s.pop();
+                        assertNotNull(v);
+                        assertEquals(1, seen.incrementAndGet(v));
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertNull(s.pop());
+        for(int i = 0 ; i<seen.length() ; ++i){
+            assertEquals(1, seen.get(i));
+        }
+    }
+
+    @Test
+    public void slots_freed_by_one_thread_are_used_by_another() throws InterruptedException {
+        PooledLockFreeStack<Integer> s = new PooledLockFreeStack<>(3);
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        assertTrue(s.push(1));
+        assertTrue(s.push(2));
+        assertTrue(s.push(3));
+        Thread consumer = new Thread(() -> {
+            try{
+                for(int i = 0 ; i<3 ; ++i){
+                    assertNotNull(s.pop());
+                }
+            }catch(Throwable e){
+                eQueue.add(e);
+            }
+        });
+        consumer.start();
+        consumer.join();
+        assertEquals(0, eQueue.size());
+        // all the slots freed by the consumer are available to this thread
+        assertTrue(s.push(97));
+        assertTrue(s.push(98));
+        assertTrue(s.push(99));
+        assertFalse(s.push(100));
+        assertEquals(99, (int) s.pop());
+    }
+}
@@ -118,4 +118,15 @@ public class SemaphoreWithFifoPolicyTests {
         }
         assertEquals(0, eQueue.size());
     }
+
+    @Test
+    public void acquires_the_last_available_units_without_waiting() throws InterruptedException {
+        // the acquire used to require more units available than the ones asked for
+        SemaphoreWithFifoPolicy s = new SemaphoreWithFifoPolicy(1);
+        for(int i = 0 ; i<nOfReps ; ++i){
+            assertTrue(s.acquire(1, 0));
+            assertFalse(s.acquire(1, 0));
+            s.release(1);
+        }
+    }
 }
@@ -0,0 +1,55 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpinPolicyTests {
+
+    @Test
+    public void disabled_policy_never_spins(){
+        SpinPolicy spin = new SpinPolicy(0);
+        spin.succeeded(100);
+        assertEquals(0, spin.spins());
+        assertEquals(0, SpinPolicy.DISABLED.spins());
+    }
+
+    @Test
+    public void window_follows_the_recent_spins(){
+        SpinPolicy spin = new SpinPolicy(1000);
+        int initial = spin.spins();
+        // successes near the end of the window make it grow
+        for(int i = 0 ; i<100 ; ++i){
+            spin.succeeded(spin.spins() - 1);
+        }
+        assertEquals(1000, spin.spins());
+        // blocking makes it shrink quickly
+        for(int i = 0 ; i<20 ; ++i){
+            spin.failed();
+        }
+        assertEquals(initial, spin.spins());
+    }
+
+    @Test
+    public void default_policy_never_spins_on_a_single_cpu(){
+        SpinPolicy spin = new SpinPolicy();
+        spin.succeeded(100);
+        if(Runtime.getRuntime().availableProcessors() == 1){
+            assertEquals(0, spin.spins());
+        }else{
+            assertTrue(spin.spins() > 0);
+        }
+    }
+
+    @Test
+    public void interrupted_spinner_stops_spinning() throws InterruptedException {
+        LockFreeSemaphore sem = new LockFreeSemaphore(0, 1, null, new SpinPolicy(Integer.MAX_VALUE));
+        Thread.currentThread().interrupt();
+        try{
+            sem.acquire();
+            fail("acquired without permits");
+        }catch(InterruptedException e){
+            // expected
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedCounterTests {
+
+    @Test
+    public void no_increments_are_lost() throws InterruptedException {
+        final int nOfThreads = 16;
+        final int nOfReps = 100000;
+        final StripedCounter counter = new StripedCounter(4);
+        long resets = 0;
+        Thread[] ths = new Thread[nOfThreads];
+        for(int i = 0 ; i<nOfThreads ; ++i){
+            ths[i] = new Thread(() -> {
+                for(int j = 0 ; j<nOfReps ; ++j){
+                    counter.increment();
+                }
+            });
+            ths[i].start();
+        }
+        // concurrent resets must not lose increments either
+        for(int i = 0 ; i<10 ; ++i){
+            resets += counter.sumThenReset();
+            Thread.sleep(1);
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals((long) nOfThreads * nOfReps, resets + counter.sum());
+        counter.add(-5);
+        assertEquals((long) nOfThreads * nOfReps - 5, resets + counter.sumThenReset());
+        assertEquals(0, counter.sum());
+    }
+}
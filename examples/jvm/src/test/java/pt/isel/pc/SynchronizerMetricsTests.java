@@ -0,0 +1,123 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.*;
+
+public class SynchronizerMetricsTests {
+
+    @Test
+    public void wait_percentiles_are_within_the_bucket_precision(){
+        SynchronizerMetrics metrics = new SynchronizerMetrics();
+        for(long v = 1 ; v<=1000 ; ++v){
+            metrics.onGranted(v * 1000);
+        }
+        SynchronizerMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(1000, s.waitCount());
+        assertEquals(1000, s.waited);
+        long p50 = s.waitPercentile(50);
+        long p99 = s.waitPercentile(99);
+        long max = s.waitPercentile(100);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+        assertTrue(p99 >= 990000 && p99 <= 990000 * 1.125);
+        assertTrue(max >= 1000000 && max <= 1000000 * 1.125);
+        assertEquals(0, new SynchronizerMetrics().snapshot().waitPercentile(99));
+    }
+
+    @Test
+    public void throttled_region_reports_its_paths() throws InterruptedException {
+        SynchronizerMetrics metrics = new SynchronizerMetrics();
+        ThrottledRegion3 region = new ThrottledRegion3(1, 1, (int) TimeUnit.MILLISECONDS.toNanos(10),
+                0, 0, TimeUnit.NANOSECONDS, metrics);
+        assertTrue(region.TryEnter(1));
+        // waits and times out
+        assertFalse(region.TryEnter(1));
+        region.Leave(1);
+        SynchronizerMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(1, s.fastPath);
+        assertEquals(1, s.slowPath);
+        assertEquals(1, s.timedOut);
+        assertEquals(1, s.waitCount());
+        assertTrue(s.waitPercentile(100) >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void throttled_region_reports_cancelled_handovers_and_the_global_wait() throws Exception {
+        SynchronizerMetrics metrics = new SynchronizerMetrics();
+        ThrottledRegion3 region = new ThrottledRegion3(1, 10, (int) TimeUnit.SECONDS.toNanos(5),
+                0, 0, TimeUnit.NANOSECONDS, metrics);
+        assertTrue(region.TryEnter(1));
+        // completed by the caller, so the grant is handed over to a done future
+        assertTrue(region.TryEnterAsync(1).complete(false));
+        assertTrue(region.TryEnterAsync(1).cancel(false));
+        region.Leave(1);
+        SynchronizerMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(0, s.waited);
+        assertEquals(2, s.cancelled);
+        assertEquals(2, s.waitCount());
+
+        metrics = new SynchronizerMetrics();
+        region = new ThrottledRegion3(1, 10, (int) TimeUnit.MILLISECONDS.toNanos(10),
+                1, 0, TimeUnit.NANOSECONDS, metrics);
+        assertTrue(region.TryEnter(1));
+        // enters its key without waiting, then waits on the global limit and times out
+        assertFalse(region.TryEnter(2));
+        assertFalse(region.TryEnterAsync(2).get());
+        s = metrics.snapshot();
+        assertEquals(2, s.timedOut);
+        assertEquals(2, s.waitCount());
+        assertTrue(s.waitPercentile(100) >= TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @Test
+    public void semaphores_report_their_paths() throws InterruptedException {
+        SynchronizerMetrics metrics = new SynchronizerMetrics();
+        LockFreeSemaphore lfs = new LockFreeSemaphore(1, 1, metrics);
+        lfs.acquire();
+        assertFalse(lfs.acquire(1, 0, TimeUnit.MILLISECONDS));
+        assertFalse(lfs.acquire(1, 1, TimeUnit.MILLISECONDS));
+        SynchronizerMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(1, s.fastPath);
+        assertEquals(1, s.rejected);
+        assertEquals(1, s.slowPath);
+        assertEquals(1, s.timedOut);
+
+        metrics = new SynchronizerMetrics();
+        SemaphoreWithFifoPolicy fifo = new SemaphoreWithFifoPolicy(0, metrics);
+        Thread th = new Thread(() -> {
+            try{
+                Thread.sleep(20);
+            }catch(InterruptedException e){
+                return;
+            }
+            fifo.release(1);
+        });
+        th.start();
+        assertTrue(fifo.acquire(1, TimeUnit.SECONDS.toNanos(5)));
+        th.join();
+        s = metrics.snapshot();
+        assertEquals(1, s.waited);
+        assertEquals(0, s.fastPath);
+    }
+
+    @Test
+    public void exposed_as_an_mbean() throws Exception {
+        SynchronizerMetrics metrics = new SynchronizerMetrics();
+        metrics.register("tests");
+        try{
+            metrics.onFastPath();
+            metrics.onRejected();
+            metrics.onCancelled(1);
+            ObjectName name = new ObjectName("pt.isel.pc:type=SynchronizerMetrics,name=\"tests\"");
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "FastPath"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Rejected"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Cancelled"));
+        }finally{
+            metrics.unregister();
+        }
+    }
+}
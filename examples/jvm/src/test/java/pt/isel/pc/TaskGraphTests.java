@@ -0,0 +1,154 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class TaskGraphTests {
+
+    private static Runnable action(AtomicInteger clock, AtomicIntegerArray finished, int ix){
+        return () -> {
+            try{
+                Thread.sleep(ix % 3 * 5);
+            }catch(InterruptedException e){
+                throw new RuntimeException(e);
+            }
+            finished.set(ix, clock.incrementAndGet());
+        };
+    }
+
+    @Test
+    public void tasks_run_after_their_dependencies() throws Exception {
+        // the dotnet/Synch/Graph.cs graph
+        AtomicInteger clock = new AtomicInteger();
+        AtomicIntegerArray finished = new AtomicIntegerArray(7);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try{
+            TaskGraph g = new TaskGraph(executor);
+            TaskGraph.Task a = g.add("A", action(clock, finished, 0));
+            TaskGraph.Task b = g.add("B", action(clock, finished, 1), a);
+            TaskGraph.Task c = g.add("C", action(clock, finished, 2), a);
+            TaskGraph.Task d = g.add("D", action(clock, finished, 3), a);
+            TaskGraph.Task e = g.add("E", action(clock, finished, 4), a);
+            TaskGraph.Task f = g.add("F", action(clock, finished, 5), d, e);
+            TaskGraph.Task gt = g.add("G", action(clock, finished, 6), b, c, f);
+            assertFalse(g.isDone());
+            g.start();
+            g.await(5, TimeUnit.SECONDS);
+            assertTrue(g.isDone());
+            for(int i = 1 ; i<5 ; ++i){
+                assertTrue(finished.get(0) < finished.get(i));
+            }
+            assertTrue(finished.get(3) < finished.get(5));
+            assertTrue(finished.get(4) < finished.get(5));
+            assertTrue(finished.get(1) < finished.get(6));
+            assertTrue(finished.get(2) < finished.get(6));
+            assertTrue(finished.get(5) < finished.get(6));
+            assertTrue(gt.isDone());
+            assertNull(gt.failure());
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failure_skips_only_the_dependents() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        RuntimeException boom = new RuntimeException("boom");
+        TaskGraph g = new TaskGraph();
+        TaskGraph.Task a = g.add("A", runs::incrementAndGet);
+        TaskGraph.Task b = g.add("B", () -> { throw boom; }, a);
+        TaskGraph.Task c = g.add("C", runs::incrementAndGet, a);
+        TaskGraph.Task d = g.add("D", runs::incrementAndGet, b);
+        TaskGraph.Task e = g.add("E", runs::incrementAndGet, c, d);
+        g.start();
+        CompletableFuture<Void> async = g.waitAsync();
+        try{
+            g.await();
+            fail("failure not reported");
+        }catch(ExecutionException ex){
+            assertSame(boom, ex.getCause());
+        }
+        // A and C ran, D and E didn't
+        assertEquals(2, runs.get());
+        assertNull(a.failure());
+        assertNull(c.failure());
+        assertSame(boom, b.failure());
+        assertSame(boom, d.failure());
+        assertSame(boom, e.failure());
+        assertTrue(async.isCompletedExceptionally());
+    }
+
+    @Test
+    public void long_and_wide_graphs_complete_without_blocking_threads() throws Exception {
+        final int STAGES = 500;
+        final int WIDTH = 8;
+        AtomicInteger runs = new AtomicInteger();
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        // fewer threads than the tasks ready at the same time
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try{
+            TaskGraph g = new TaskGraph(executor);
+            List<TaskGraph.Task> previous = new ArrayList<>();
+            int[] done = new int[STAGES];
+            for(int s = 0 ; s<STAGES ; ++s){
+                List<TaskGraph.Task> current = new ArrayList<>();
+                final int stage = s;
+                for(int w = 0 ; w<WIDTH ; ++w){
+                    current.add(g.add("S" + s + "-" + w, () -> {
+                        // every task of the previous stage is done
+                        if(stage > 0 && done[stage - 1] != WIDTH){
+                            eQueue.add(new AssertionError("stage " + stage + " started early"));
+                        }
+                        synchronized(done){
+                            done[stage] += 1;
+                        }
+                        runs.incrementAndGet();
+                    }, previous.toArray(new TaskGraph.Task[0])));
+                }
+                previous = current;
+            }
+            g.start();
+            g.await(10, TimeUnit.SECONDS);
+            assertEquals(STAGES * WIDTH, runs.get());
+            assertEquals(0, eQueue.size());
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void graph_cant_change_after_start() throws Exception {
+        TaskGraph g = new TaskGraph();
+        TaskGraph other = new TaskGraph();
+        TaskGraph.Task a = g.add("A", () -> {});
+        try{
+            other.add("B", () -> {}, a);
+            fail("dependency from another graph");
+        }catch(IllegalArgumentException e){
+            // expected
+        }
+        g.start();
+        try{
+            g.add("C", () -> {}, a);
+            fail("added after start");
+        }catch(IllegalStateException e){
+            // expected
+        }
+        g.await();
+        // an empty graph is done as soon as it starts
+        other.start();
+        assertTrue(other.isDone());
+    }
+}
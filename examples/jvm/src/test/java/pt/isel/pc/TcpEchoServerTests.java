@@ -0,0 +1,150 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TcpEchoServerTests {
+
+    private static TcpEchoServer start(TcpEchoServer.Mode mode, int maxInside, int maxWaiting, int timeoutMs) throws IOException {
+        ThrottledRegion3 admission = new ThrottledRegion3(maxInside, maxWaiting, TcpEchoServer.regionTimeout(timeoutMs));
+        TcpEchoServer s = new TcpEchoServer(new InetSocketAddress("127.0.0.1", 0), admission, mode);
+        s.start();
+        return s;
+    }
+
+    // the echo of msg, or null if the server closed the connection
+    private static String echo(SocketChannel ch, String msg) throws IOException {
+        ByteBuffer out = ByteBuffer.wrap(msg.getBytes(StandardCharsets.US_ASCII));
+        while(out.hasRemaining()){
+            ch.write(out);
+        }
+        ByteBuffer in = ByteBuffer.allocate(out.capacity());
+        while(in.hasRemaining()){
+            try{
+                if(ch.read(in) < 0){
+                    return null;
+                }
+            }catch(IOException e){
+                // reset by the server
+                return null;
+            }
+        }
+        return new String(in.array(), StandardCharsets.US_ASCII);
+    }
+
+    private static void echoes_and_rejects_past_max_waiting(TcpEchoServer.Mode mode) throws Exception {
+        try(TcpEchoServer s = start(mode, 1, 1, 1500)){
+            InetSocketAddress address = s.localAddress();
+            SocketChannel first = SocketChannel.open(address);
+            try{
+                assertEquals("hello", echo(first, "hello"));
+                SocketChannel waiting = SocketChannel.open(address);
+                // let it get to the region before the third one
+                Thread.sleep(50);
+                SocketChannel third = SocketChannel.open(address);
+                // the third one finds the address with one inside and one waiting, and is closed before the timeout
+                long start = System.nanoTime();
+                assertNull(echo(third, "x"));
+                assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+                assertEquals("world", echo(first, "world"));
+                // the waiting one is served once the first leaves
+                first.close();
+                assertEquals("later", echo(waiting, "later"));
+                waiting.close();
+                third.close();
+            }finally{
+                first.close();
+            }
+            assertEquals(3, s.accepted());
+            assertEquals(1, s.rejected());
+        }
+    }
+
+    @Test
+    public void selector_echoes_and_rejects_past_max_waiting() throws Exception {
+        echoes_and_rejects_past_max_waiting(TcpEchoServer.Mode.SELECTOR);
+    }
+
+    @Test
+    public void thread_per_connection_echoes_and_rejects_past_max_waiting() throws Exception {
+        echoes_and_rejects_past_max_waiting(TcpEchoServer.Mode.THREAD_PER_CONNECTION);
+    }
+
+    @Test
+    public void waiting_connection_is_closed_on_timeout() throws Exception {
+        for(TcpEchoServer.Mode mode : TcpEchoServer.Mode.values()){
+            try(TcpEchoServer s = start(mode, 1, 1, 100)){
+                InetSocketAddress address = s.localAddress();
+                try(SocketChannel first = SocketChannel.open(address)){
+                    assertEquals("a", echo(first, "a"));
+                    SocketChannel waiting = SocketChannel.open(address);
+                    assertNull(echo(waiting, "b"));
+                    waiting.close();
+                    assertEquals("c", echo(first, "c"));
+                }
+                assertEquals(1, s.rejected());
+            }
+        }
+    }
+
+    @Test
+    public void timeouts_that_overflow_the_region_timeout_are_rejected(){
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2147), TcpEchoServer.regionTimeout(2147));
+        try{
+            TcpEchoServer.regionTimeout(2148);
+            fail("overflowing timeout accepted");
+        }catch(IllegalArgumentException e){
+            // expected
+        }
+    }
+
+    @Test
+    public void close_without_start_does_nothing() throws Exception {
+        for(TcpEchoServer.Mode mode : TcpEchoServer.Mode.values()){
+            ThrottledRegion3 admission = new ThrottledRegion3(1, 0, TcpEchoServer.regionTimeout(100));
+            new TcpEchoServer(new InetSocketAddress("127.0.0.1", 0), admission, mode).close();
+        }
+    }
+
+    @Test
+    public void close_after_a_failed_start_does_nothing() throws Exception {
+        for(TcpEchoServer.Mode mode : TcpEchoServer.Mode.values()){
+            try(TcpEchoServer running = start(mode, 1, 0, 100)){
+                ThrottledRegion3 admission = new ThrottledRegion3(1, 0, TcpEchoServer.regionTimeout(100));
+                // the address is in use, so the bind fails
+                try(TcpEchoServer s = new TcpEchoServer(running.localAddress(), admission, mode)){
+                    s.start();
+                    fail("bound to an address in use");
+                }catch(IOException e){
+                    // expected, and close didn't fail
+                }
+            }
+        }
+    }
+
+    @Test
+    public void close_releases_the_admitted_connections() throws Exception {
+        for(TcpEchoServer.Mode mode : TcpEchoServer.Mode.values()){
+            TcpEchoServer s = start(mode, 2, 0, 100);
+            ThrottledRegion3 admission = s.admission();
+            try(SocketChannel ch = SocketChannel.open(s.localAddress())){
+                assertEquals("a", echo(ch, "a"));
+                s.close();
+                assertNull(echo(ch, "b"));
+            }
+            // both places free again, even if the connection was closed by the server
+            int key = InetAddress.getByName("127.0.0.1").hashCode();
+            assertTrue(admission.TryEnter(key));
+            assertTrue(admission.TryEnter(key));
+        }
+    }
+}
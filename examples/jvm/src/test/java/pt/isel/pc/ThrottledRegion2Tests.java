@@ -0,0 +1,79 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ThrottledRegion2Tests {
+
+    @Test
+    public void idle_regions_are_evicted() throws InterruptedException {
+        ThrottledRegion2 region = new ThrottledRegion2(1, 0, 1 << 30);
+        for(int key = 0 ; key<100 ; ++key){
+            assertTrue(region.TryEnter(key));
+        }
+        for(int key = 0 ; key<50 ; ++key){
+            region.Leave(key);
+        }
+        assertEquals(100, region.keyCount());
+        // the first sweep only clears the recently used mark
+        assertEquals(0, region.evictIdle());
+        assertEquals(50, region.evictIdle());
+        assertEquals(50, region.keyCount());
+        // the evicted keys are recreated on demand, the others keep their entries
+        assertTrue(region.TryEnter(0));
+        assertFalse(region.TryEnter(50));
+        assertEquals(51, region.keyCount());
+        region.Leave(50);
+        assertTrue(region.TryEnter(50));
+    }
+
+    @Test
+    public void eviction_does_not_break_the_limit() throws InterruptedException {
+        final int N_OF_KEYS = 16;
+        final int KEYS_IN_USE = 4;
+        ThrottledRegion2 region = new ThrottledRegion2(2, 100, 1 << 30);
+        AtomicIntegerArray inside = new AtomicIntegerArray(N_OF_KEYS);
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[8];
+        long deadline = System.currentTimeMillis() + 2000;
+        for(int i = 0 ; i<ths.length ; ++i){
+            int th = i;
+            ths[i] = new Thread(() -> {
+                try{
+                    long now;
+                    while((now = System.currentTimeMillis()) < deadline){
+                        // every 10 ms the threads move on to other keys, so the previous ones go idle and are
+                        // evicted, and are entered again while possibly being retired
+                        int key = th % KEYS_IN_USE + KEYS_IN_USE * (int) ((now / 10) % (N_OF_KEYS / KEYS_IN_USE));
+                        if(!region.TryEnter(key)){
+                            continue;
+                        }
+                        if(inside.incrementAndGet(key) > 2){
+                            eQueue.add(new AssertionError("more than maxInside on key " + key));
+                        }
+                        Thread.yield();
+                        inside.decrementAndGet(key);
+                        region.Leave(key);
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        int evicted = 0;
+        while(System.currentTimeMillis() < deadline){
+            evicted += region.evictIdle();
+            Thread.yield();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertTrue(evicted > 0);
+        assertTrue(region.keyCount() <= N_OF_KEYS);
+    }
+}
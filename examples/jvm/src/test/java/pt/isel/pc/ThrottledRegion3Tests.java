@@ -3,8 +3,11 @@ package pt.isel.pc;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Created by pedro on 19/11/16.
@@ -74,4 +77,296 @@ public class ThrottledRegion3Tests {
             throw t;
         }
     }
+
+    @Test
+    public void idle_regions_are_evicted() throws InterruptedException {
+        ThrottledRegion3 region = new ThrottledRegion3(1, 1, 1 << 30);
+        for(int key = 0 ; key<100 ; ++key){
+            assertTrue(region.TryEnter(key));
+        }
+        for(int key = 0 ; key<50 ; ++key){
+            region.Leave(key);
+        }
+        assertEquals(100, region.keyCount());
+        // the first sweep only clears the recently used mark
+        assertEquals(0, region.evictIdle());
+        assertEquals(50, region.evictIdle());
+        assertEquals(50, region.keyCount());
+        // the evicted keys are recreated on demand
+        assertTrue(region.TryEnter(0));
+        assertFalse(region.TryEnter(50));
+        assertEquals(51, region.keyCount());
+    }
+
+    @Test
+    public void eviction_does_not_break_the_limit() throws InterruptedException {
+        final int N_OF_KEYS = 16;
+        final int KEYS_IN_USE = 4;
+        ThrottledRegion3 region = new ThrottledRegion3(2, 100, 1 << 30);
+        AtomicIntegerArray inside = new AtomicIntegerArray(N_OF_KEYS);
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[8];
+        long deadline = System.currentTimeMillis() + 2000;
+        for(int i = 0 ; i<ths.length ; ++i){
+            int th = i;
+            ths[i] = new Thread(() -> {
+                try{
+                    long now;
+                    while((now = System.currentTimeMillis()) < deadline){
+                        // every 10 ms the threads move on to other keys, so the previous ones go idle and are
+                        // evicted, and are entered again while possibly being retired
+                        int key = th % KEYS_IN_USE + KEYS_IN_USE * (int) ((now / 10) % (N_OF_KEYS / KEYS_IN_USE));
+                        if(!region.TryEnter(key)){
+                            continue;
+                        }
+                        if(inside.incrementAndGet(key) > 2){
+                            eQueue.add(new AssertionError("more than maxInside on key " + key));
+                        }
+                        Thread.yield();
+                        inside.decrementAndGet(key);
+                        region.Leave(key);
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        int evicted = 0;
+        while(System.currentTimeMillis() < deadline){
+            evicted += region.evictIdle();
+            Thread.yield();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+        assertTrue(evicted > 0);
+        assertTrue(region.keyCount() <= N_OF_KEYS);
+    }
+
+    @Test
+    public void async_entries_are_handed_over_in_fifo_order() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(1, 2, 1 << 30);
+        assertTrue(region.TryEnterAsync(1).get());
+        CompletableFuture<Boolean> first = region.TryEnterAsync(1);
+        CompletableFuture<Boolean> second = region.TryEnterAsync(1);
+        // maxWaiting reached
+        assertFalse(region.TryEnterAsync(1).get());
+        assertFalse(first.isDone());
+        region.Leave(1);
+        assertTrue(first.get(1, TimeUnit.SECONDS));
+        assertFalse(second.isDone());
+        region.Leave(1);
+        assertTrue(second.get(1, TimeUnit.SECONDS));
+        region.Leave(1);
+        // nothing inside, the fast path is used again
+        assertTrue(region.TryEnterAsync(1).isDone());
+    }
+
+    @Test
+    public void async_entries_time_out() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(1, 10, (int) TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(region.TryEnter(1));
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> f = region.TryEnterAsync(1);
+        assertFalse(f.get(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        // a cancelled waiter doesn't keep the handed over entry
+        CompletableFuture<Boolean> cancelled = region.TryEnterAsync(1);
+        CompletableFuture<Boolean> next = region.TryEnterAsync(1);
+        cancelled.cancel(false);
+        region.Leave(1);
+        assertTrue(next.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void weighted_entries_share_the_budget_in_fifo_order() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(10, 10, 1 << 30);
+        assertTrue(region.TryEnter(1, 6));
+        assertTrue(region.TryEnter(1, 4));
+        CompletableFuture<Boolean> heavy = region.TryEnterAsync(1, 8);
+        // would fit after a Leave of 2, but must not overtake the heavy one
+        CompletableFuture<Boolean> light1 = region.TryEnterAsync(1, 1);
+        CompletableFuture<Boolean> light2 = region.TryEnterAsync(1, 1);
+        region.Leave(1, 4);
+        assertFalse(heavy.isDone());
+        assertFalse(light1.isDone());
+        // one release grants all the waiters that fit
+        region.Leave(1, 6);
+        assertTrue(heavy.get(1, TimeUnit.SECONDS));
+        assertTrue(light1.get(1, TimeUnit.SECONDS));
+        assertTrue(light2.get(1, TimeUnit.SECONDS));
+        assertFalse(region.TryEnterAsync(1, 1).isDone());
+    }
+
+    @Test
+    public void a_heavy_waiter_giving_up_unblocks_the_lighter_ones() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(4, 10, (int) TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(region.TryEnter(1, 3));
+        CompletableFuture<Boolean> heavy = region.TryEnterAsync(1, 4);
+        CompletableFuture<Boolean> light = region.TryEnterAsync(1, 1);
+        assertFalse(heavy.get(5, TimeUnit.SECONDS));
+        assertTrue(light.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void invalid_weights_are_rejected() throws InterruptedException {
+        ThrottledRegion3 region = new ThrottledRegion3(4, 10, 1 << 30);
+        for(int weight : new int[]{0, -1, 5}){
+            try{
+                region.TryEnter(1, weight);
+                fail("weight " + weight + " was accepted");
+            }catch(IllegalArgumentException e){
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void leave_on_one_key_grants_the_global_limit_to_another_key() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(2, 10, 1 << 30, 3);
+        assertTrue(region.TryEnter(1));
+        assertTrue(region.TryEnter(1));
+        assertTrue(region.TryEnter(2));
+        // below the limit of its key, but the global limit is reached
+        CompletableFuture<Boolean> waiter = region.TryEnterAsync(3);
+        assertFalse(waiter.isDone());
+        region.Leave(1);
+        assertTrue(waiter.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void the_global_limit_is_never_exceeded() throws InterruptedException {
+        final int GLOBAL = 5;
+        ThrottledRegion3 region = new ThrottledRegion3(2, 100, 1 << 30, GLOBAL);
+        AtomicInteger inside = new AtomicInteger();
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        Thread[] ths = new Thread[16];
+        long deadline = System.currentTimeMillis() + 2000;
+        for(int i = 0 ; i<ths.length ; ++i){
+            int key = i % 8;
+            ths[i] = new Thread(() -> {
+                try{
+                    while(System.currentTimeMillis() < deadline){
+                        if(!region.TryEnter(key)){
+                            continue;
+                        }
+                        if(inside.incrementAndGet() > GLOBAL){
+                            eQueue.add(new AssertionError("more than the global limit inside"));
+                        }
+                        Thread.yield();
+                        inside.decrementAndGet();
+                        region.Leave(key);
+                    }
+                }catch(Throwable e){
+                    eQueue.add(e);
+                }
+            });
+            ths[i].start();
+        }
+        for(Thread th : ths){
+            th.join();
+        }
+        assertEquals(0, eQueue.size());
+    }
+
+    @Test
+    public void cancelled_async_entries_leave_the_queue() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(1, 1, 1 << 30);
+        assertTrue(region.TryEnter(1));
+        CompletableFuture<Boolean> first = region.TryEnterAsync(1);
+        assertFalse(first.isDone());
+        // the waiting place is taken
+        assertFalse(region.TryEnterAsync(1).get());
+        assertTrue(first.cancel(false));
+        // and free again after the cancel
+        CompletableFuture<Boolean> second = region.TryEnterAsync(1);
+        assertFalse(second.isDone());
+        region.Leave(1);
+        assertTrue(second.get());
+        region.Leave(1);
+        assertTrue(region.TryEnter(1));
+    }
+
+    @Test
+    public void a_long_run_of_abandoned_async_entries_is_given_back_without_recursion() throws Exception {
+        final int N = 100000;
+        ThrottledRegion3 region = new ThrottledRegion3(1, 1 << 20, 1 << 30);
+        assertTrue(region.TryEnter(1));
+        for(int i = 0 ; i<N ; ++i){
+            // completed by the caller, so the grant can't be delivered and must be given back
+            region.TryEnterAsync(1).complete(false);
+        }
+        region.Leave(1);
+        // every grant was given back, so the region is empty
+        assertTrue(region.TryEnter(1));
+        assertFalse(region.TryEnterAsync(1).isDone());
+    }
+
+    @Test
+    public void cancelling_an_entry_waiting_on_the_global_limit_gives_back_its_weight() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(1, 10, (int) TimeUnit.SECONDS.toNanos(1), 1);
+        assertTrue(region.TryEnter(1));
+        CompletableFuture<Boolean> cancelled = region.TryEnterAsync(2);
+        assertFalse(cancelled.isDone());
+        assertTrue(cancelled.cancel(false));
+        region.Leave(1);
+        // the cancelled entry holds neither its key nor the global weight
+        assertTrue(region.TryEnter(2));
+        region.Leave(2);
+        assertTrue(region.TryEnter(3));
+        region.Leave(3);
+    }
+
+    @Test
+    public void cancelling_an_entry_waiting_on_its_key_gives_back_its_weight() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(1, 10, 1 << 30, 2);
+        assertTrue(region.TryEnter(1));
+        CompletableFuture<Boolean> cancelled = region.TryEnterAsync(1);
+        assertFalse(cancelled.isDone());
+        assertTrue(cancelled.cancel(false));
+        region.Leave(1);
+        assertTrue(region.TryEnter(1));
+        assertTrue(region.TryEnter(2));
+    }
+
+    @Test
+    public void weight_granted_after_the_cancel_is_given_back() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(1, 10, 1 << 30, 1);
+        assertTrue(region.TryEnter(1));
+        CompletableFuture<Boolean> abandoned = region.TryEnterAsync(2);
+        // completed by the caller instead of cancelled, so the waits go on and are granted
+        assertTrue(abandoned.complete(false));
+        region.Leave(1);
+        assertTrue(region.TryEnter(2));
+        region.Leave(2);
+        assertTrue(region.TryEnter(3));
+    }
+
+    @Test
+    public void waiters_on_the_global_limit_are_bounded_by_max_waiting() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(1, 1, 1 << 30, 1);
+        assertTrue(region.TryEnter(1));
+        CompletableFuture<Boolean> waiter = region.TryEnterAsync(2);
+        assertFalse(waiter.isDone());
+        // another key, but the only global waiting place is taken
+        assertFalse(region.TryEnterAsync(3).get());
+        assertFalse(region.TryEnter(3));
+        region.Leave(1);
+        assertTrue(waiter.get(1, TimeUnit.SECONDS));
+        region.Leave(2);
+        assertTrue(region.TryEnter(3));
+    }
+
+    @Test
+    public void weight_above_the_global_limit_is_rejected() throws Exception {
+        ThrottledRegion3 region = new ThrottledRegion3(4, 10, 1 << 30, 2);
+        try{
+            region.TryEnter(1, 3);
+            fail("weight above the global limit accepted");
+        }catch(IllegalArgumentException e){
+            assertTrue(e.getMessage().contains("globalMaxInside"));
+        }
+    }
 }
@@ -0,0 +1,65 @@
+package pt.isel.pc;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTests {
+
+    @Test
+    public void timeouts_never_expire_early() throws InterruptedException {
+        // small wheel, so that most of the timeouts need more than one lap
+        TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 8);
+        final int N = 200;
+        CountDownLatch latch = new CountDownLatch(N);
+        ConcurrentLinkedQueue<Throwable> eQueue = new ConcurrentLinkedQueue<>();
+        for(int i = 0 ; i<N ; ++i){
+            long delay = TimeUnit.MILLISECONDS.toNanos(i % 50);
+            long start = System.nanoTime();
+            wheel.schedule(() -> {
+                if(System.nanoTime() - start < delay){
+                    eQueue.add(new AssertionError("expired early"));
+                }
+                latch.countDown();
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, eQueue.size());
+    }
+
+    @Test
+    public void cancelled_timeouts_never_run() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 64);
+        AtomicInteger runs = new AtomicInteger();
+        TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[100];
+        for(int i = 0 ; i<timeouts.length ; ++i){
+            timeouts[i] = wheel.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        }
+        for(int i = 0 ; i<timeouts.length ; i += 2){
+            assertTrue(timeouts[i].cancel());
+        }
+        Thread.sleep(200);
+        assertEquals(timeouts.length / 2, runs.get());
+        for(int i = 0 ; i<timeouts.length ; ++i){
+            assertEquals(i % 2 == 0, timeouts[i].isCancelled());
+            assertEquals(i % 2 != 0, timeouts[i].isExpired());
+            assertFalse(timeouts[i].cancel());
+        }
+    }
+
+    @Test
+    public void the_wheel_restarts_after_being_idle() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 16);
+        for(int i = 0 ; i<3 ; ++i){
+            CountDownLatch latch = new CountDownLatch(1);
+            wheel.schedule(latch::countDown, 10, TimeUnit.MILLISECONDS);
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+            Thread.sleep(50);
+        }
+    }
+}